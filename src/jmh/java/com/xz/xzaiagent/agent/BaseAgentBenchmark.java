@@ -0,0 +1,49 @@
+package com.xz.xzaiagent.agent;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.tool.ToolCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BaseAgent.isStuck 基准：每一步都会执行一次，耗时随消息历史长度增长
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BaseAgentBenchmark {
+
+    /**
+     * 消息历史长度
+     */
+    @Param({"10", "100", "1000"})
+    public int historySize;
+
+    private ToolCallAgent agent;
+
+    @Setup
+    public void setUp() {
+        agent = new ToolCallAgent(new ToolCallback[0]);
+        // 用户 / 助手交替，最后一条助手消息与第 1 步重复，保证 isStuck 需要扫描完整历史
+        List<Message> messages = new ArrayList<>(historySize);
+        for (int i = 0; i < historySize - 1; i++) {
+            messages.add(i % 2 == 0
+                    ? new UserMessage("根据用户需求，主动选择最合适的工具或工具组合。")
+                    : new AssistantMessage("第 " + i + " 步：正在检索相关资料，请稍候。"));
+        }
+        messages.add(new AssistantMessage("第 1 步：正在检索相关资料，请稍候。"));
+        agent.setMessageList(messages);
+    }
+
+    @Benchmark
+    public boolean isStuck() {
+        return agent.isStuck();
+    }
+}
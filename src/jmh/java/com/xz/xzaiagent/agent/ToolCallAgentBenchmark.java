@@ -0,0 +1,59 @@
+package com.xz.xzaiagent.agent;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.tool.ToolCallback;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ToolCallAgent.formatToolOutput 基准：大体积 HTML / JSON 工具结果的格式化耗时
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ToolCallAgentBenchmark {
+
+    /**
+     * 工具结果大小（KB）
+     */
+    @Param({"16", "256"})
+    public int payloadKb;
+
+    private ToolCallAgent agent;
+
+    private String html;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        agent = new ToolCallAgent(new ToolCallback[0]);
+
+        StringBuilder htmlBuilder = new StringBuilder("<!DOCTYPE html><html><head><title>高血压的诊断与治疗</title></head><body>");
+        StringBuilder jsonBuilder = new StringBuilder("{\"organic_results\":[");
+        for (int i = 0; htmlBuilder.length() < payloadKb * 1024; i++) {
+            htmlBuilder.append("<div class=\"item\"><h2>第 ").append(i).append(" 节 Blood pressure</h2>")
+                    .append("<p>高血压是以体循环动脉压升高为主要特征的临床综合征，<a href=\"https://example.com/").append(i)
+                    .append("\">read more</a> about lifestyle changes.</p></div>");
+            if (i > 0) jsonBuilder.append(',');
+            jsonBuilder.append("{\"position\":").append(i)
+                    .append(",\"title\":\"高血压的诊断与治疗 ").append(i)
+                    .append("\",\"link\":\"https://example.com/").append(i)
+                    .append("\",\"snippet\":\"Hypertension is a long-term condition in which the blood pressure is persistently elevated.\"}");
+        }
+        html = htmlBuilder.append("</body></html>").toString();
+        json = jsonBuilder.append("]}").toString();
+    }
+
+    @Benchmark
+    public String formatHtml() {
+        return agent.formatToolOutput(html);
+    }
+
+    @Benchmark
+    public String formatJson() {
+        return agent.formatToolOutput(json);
+    }
+}
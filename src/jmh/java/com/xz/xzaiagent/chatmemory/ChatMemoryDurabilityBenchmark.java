@@ -0,0 +1,87 @@
+package com.xz.xzaiagent.chatmemory;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * InFileChatMemory 组提交基准：多个线程同时向不同会话追加一轮对话，比较各持久化级别下的吞吐量
+ * <p>
+ * ASYNC 的吞吐量受写入队列容量限制（队列写满后 add 阻塞），反映的是写入线程能持续承受的速度
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+public class ChatMemoryDurabilityBenchmark {
+
+    @Param({"ASYNC", "BATCHED_FSYNC", "PER_WRITE_FSYNC"})
+    public InFileChatMemory.Durability durability;
+
+    @Param({"SNAPSHOT", "LOG"})
+    public InFileChatMemory.StorageMode storage;
+
+    /**
+     * 同时活跃的会话数：会话少时同一批次中多次写入同一文件，组提交可合并写入与刷盘；会话多时每个文件每批通常只有一次写入
+     */
+    @Param({"4", "1000"})
+    public int conversations;
+
+    private Path dir;
+
+    private InFileChatMemory chatMemory;
+
+    private List<Message> turn;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("chat-memory-durability-bench");
+        turn = List.of(
+                new UserMessage("最近总是失眠，晚上一两点才能睡着，有什么办法改善吗？"),
+                new AssistantMessage("失眠常见的原因包括作息不规律、压力大、睡前使用电子设备等。建议固定作息时间，睡前一小时避免使用手机。"));
+    }
+
+    /**
+     * 每轮迭代使用新的实例与空目录，避免会话持续变长影响 SNAPSHOT 的结果；合并间隔设为 null，只测写入
+     */
+    @Setup(Level.Iteration)
+    public void openChatMemory() throws IOException {
+        clean();
+        chatMemory = new InFileChatMemory(dir.toString(), storage, Integer.MAX_VALUE, null,
+                new MessageCodec(true, 1024), durability);
+    }
+
+    @Benchmark
+    public void add() {
+        chatMemory.add("conversation-" + ThreadLocalRandom.current().nextInt(conversations), turn);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeChatMemory() {
+        chatMemory.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        clean();
+        Files.deleteIfExists(dir);
+    }
+
+    private void clean() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).filter(p -> !p.equals(dir)).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.xz.xzaiagent.chatmemory;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * InFileChatMemory 基准：不同存储模式、不同会话长度下 add 一轮对话与读取最近 N 条的耗时
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class InFileChatMemoryBenchmark {
+
+    private static final String CONVERSATION_ID = "0123456789abcdef0123456789abcdef";
+
+    /**
+     * add 基准每写入多少轮重置一次会话，会话长度保持在 conversationLength 到 conversationLength + 2 * ADDS_BEFORE_RESET 之间
+     */
+    private static final int ADDS_BEFORE_RESET = 10;
+
+    @Param({"SNAPSHOT", "LOG"})
+    public InFileChatMemory.StorageMode storage;
+
+    /**
+     * 会话中已有的消息条数
+     */
+    @Param({"10", "100", "1000"})
+    public int conversationLength;
+
+    /**
+     * 读取最近的消息条数（与 SimpleChat 默认的 retrieveSize 一致）
+     */
+    @Param({"20"})
+    public int lastN;
+
+    private Path dir;
+
+    private InFileChatMemory chatMemory;
+
+    private List<Message> turn;
+
+    /**
+     * add 基准已写入的轮数
+     */
+    private int adds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("chat-memory-bench");
+        turn = List.of(
+                new UserMessage("最近总是失眠，晚上一两点才能睡着，有什么办法改善吗？"),
+                new AssistantMessage("失眠常见的原因包括作息不规律、压力大、睡前使用电子设备等。建议固定作息时间，睡前一小时避免使用手机。"));
+    }
+
+    /**
+     * 每轮迭代前把会话重置为 conversationLength 条
+     */
+    @Setup(Level.Iteration)
+    public void resetConversation() {
+        chatMemory = new InFileChatMemory(dir.toString(), storage, 64, null, new MessageCodec(true, 1024),
+                InFileChatMemory.Durability.ASYNC);
+        fillConversation();
+    }
+
+    /**
+     * add 会让会话持续增长（一轮迭代可写入上万轮），每写入 ADDS_BEFORE_RESET 轮就清空并重新填充，
+     * 使测得的耗时对应 conversationLength 而不是迭代末尾的长度；重置在 Setup 中进行，不计入耗时。
+     * 只在达到阈值时才重置，Level.Invocation 的额外开销仅为一次计数
+     */
+    @Setup(Level.Invocation)
+    public void resetGrownConversation() {
+        if (adds < ADDS_BEFORE_RESET)
+            return;
+        fillConversation();
+        adds = 0;
+    }
+
+    private void fillConversation() {
+        chatMemory.clear(CONVERSATION_ID);
+        // 与真实对话一样逐轮写入
+        for (int i = 0; i < conversationLength / 2; i++)
+            chatMemory.add(CONVERSATION_ID, turn);
+    }
+
+    @Benchmark
+    public void add() {
+        chatMemory.add(CONVERSATION_ID, turn);
+        adds++;
+    }
+
+    @Benchmark
+    public List<Message> getLastN() {
+        return chatMemory.get(CONVERSATION_ID, lastN);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeChatMemory() {
+        chatMemory.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.xz.xzaiagent.chatmemory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageCodec 基准：旧格式（未注册的 Kryo）与新格式（注册 + 自定义序列化器，可选压缩）编解码一段会话的耗时
+ * <p>
+ * 编码后的字节数在 setUp 时打印，便于同时比较文件大小
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MessageCodecBenchmark {
+
+    public enum Format {
+        LEGACY, REGISTERED, COMPRESSED
+    }
+
+    @Param({"LEGACY", "REGISTERED", "COMPRESSED"})
+    public Format format;
+
+    /**
+     * 会话轮数，每轮一问一答，每 5 轮带一次工具调用
+     */
+    @Param({"1", "100"})
+    public int turns;
+
+    private Kryo legacyKryo;
+
+    private MessageCodec codec;
+
+    private ArrayList<Message> messages;
+
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        legacyKryo = new Kryo();
+        legacyKryo.setRegistrationRequired(false);
+        legacyKryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+        codec = new MessageCodec(format == Format.COMPRESSED, 1024);
+
+        messages = new ArrayList<>();
+        messages.add(new SystemMessage("扮演深耕恋爱心理领域的专家。开场向用户表明身份，告知用户可倾诉恋爱难题。"));
+        for (int i = 0; i < turns; i++) {
+            messages.add(new UserMessage("我和女朋友最近因为家务分配吵架了，她总觉得我做得不够多，我该怎么和她沟通？（第 " + i + " 轮）"));
+            if (i % 5 == 0) {
+                String callId = "call_" + i;
+                messages.add(new AssistantMessage(null, Map.of("id", "chatcmpl-" + i, "finishReason", "TOOL_CALLS"),
+                        List.of(new AssistantMessage.ToolCall(callId, "function", "searchWeb", "{\"query\":\"情侣 家务分配 沟通\"}")),
+                        List.of()));
+                messages.add(new ToolResponseMessage(List.of(new ToolResponseMessage.ToolResponse(callId, "searchWeb",
+                        "[{\"title\":\"情侣如何分配家务\",\"link\":\"https://example.com/" + i + "\",\"snippet\":\"沟通时先表达自己的感受，再提出具体的分工建议，避免指责对方。\"}]")),
+                        Map.of()));
+            }
+            messages.add(new AssistantMessage("理解你的感受。建议先找一个双方都放松的时间，坦诚说出各自的期待；然后一起列出家务清单，"
+                    + "按各自的时间和偏好分工，并约定每周回顾调整。（第 " + i + " 轮）",
+                    Map.of("id", "chatcmpl-" + i, "finishReason", "STOP")));
+        }
+        encoded = encode();
+        System.out.printf("%n%s, %d messages: %d bytes%n", format, messages.size(), encoded.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        if (format == Format.LEGACY) {
+            Output output = new Output(256, -1);
+            legacyKryo.writeObject(output, messages);
+            return output.toBytes();
+        }
+        return codec.encode(messages);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<Message> decode() {
+        if (format == Format.LEGACY)
+            return legacyKryo.readObject(new Input(encoded), ArrayList.class);
+        return codec.decode(encoded);
+    }
+}
@@ -0,0 +1,48 @@
+package com.xz.xzaiagent.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TextUtil.normalizeMessage 基准：模拟 LLM 输出的中英文混排文本（多余空行、Windows 换行、汉字间空格）
+ * <p>
+ * chunk 对应流式输出中的单个 token 片段，paragraph 对应一个步骤结果，document 对应完整的长回复
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TextUtilBenchmark {
+
+    private static final String PARAGRAPH = """
+            根据您描述的症状，  头痛 伴随 恶心  可能与以下几种情况有关：\r
+            \r
+            \r
+            1. 偏头痛（Migraine）：通常表现为 单侧 搏动性头痛，   持续 4-72 hours。\t
+            2. 紧张型头痛：与 压力、  睡眠不足 相关，   often described as a "tight band" around the head.
+               
+            
+            建议：  如果症状持续超过 48 小时，   请及时就医。 You may also track triggers such as caffeine,  sleep  and stress. 
+            """;
+
+    @Param({"chunk", "paragraph", "document"})
+    public String size;
+
+    private String input;
+
+    @Setup
+    public void setUp() {
+        input = switch (size) {
+            case "chunk" -> "  头痛 伴随 ";
+            case "paragraph" -> PARAGRAPH;
+            default -> PARAGRAPH.repeat(40);
+        };
+    }
+
+    @Benchmark
+    public String normalizeMessage() {
+        return TextUtil.normalizeMessage(input);
+    }
+}
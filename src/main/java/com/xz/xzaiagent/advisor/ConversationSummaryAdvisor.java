@@ -0,0 +1,92 @@
+package com.xz.xzaiagent.advisor;
+
+import com.xz.xzaiagent.chatmemory.ConversationSummarizer;
+import com.xz.xzaiagent.chatmemory.ConversationSummary;
+import org.springframework.ai.chat.client.advisor.api.*;
+import org.springframework.ai.chat.model.MessageAggregator;
+import reactor.core.publisher.Flux;
+
+import java.util.Map;
+
+import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY;
+import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.DEFAULT_CHAT_MEMORY_CONVERSATION_ID;
+
+/**
+ * 会话摘要 Advisor：对话记忆的较早一层
+ * <p>
+ * 请求前把会话的滚动摘要附加到系统提示词之后（最近的原始消息仍由对话记忆 Advisor 注入），
+ * 一轮对话结束后登记会话，由 ConversationSummarizer 在后台把新移出窗口的消息并入摘要，请求路径上不调用模型
+ */
+public class ConversationSummaryAdvisor implements CallAroundAdvisor, StreamAroundAdvisor {
+
+    private static final String SUMMARY_SECTION = "\n\n以下是本次会话较早对话的摘要（对应的原始消息不再提供），回答时可参考：\n";
+
+    /**
+     * 按相关性注入历史时，较早轮次中与本次问题相关的几轮仍会以原始消息出现
+     */
+    private static final String SUMMARY_SECTION_WITH_RELEVANT_TURNS =
+            "\n\n以下是本次会话较早对话的摘要（其中与本次问题最相关的几轮另以原始消息提供），回答时可参考：\n";
+
+    /**
+     * 为 null 时未启用摘要，直接放行
+     */
+    private final ConversationSummarizer summarizer;
+
+    private final String summarySection;
+
+    /**
+     * @param summarizer            会话摘要，为 null 时直接放行
+     * @param relevantTurnsInjected 对话记忆是否按相关性注入（RelevantMemoryAdvisor），此时摘要与相关的原始轮次可能同时出现
+     */
+    public ConversationSummaryAdvisor(ConversationSummarizer summarizer, boolean relevantTurnsInjected) {
+        this.summarizer = summarizer;
+        this.summarySection = relevantTurnsInjected ? SUMMARY_SECTION_WITH_RELEVANT_TURNS : SUMMARY_SECTION;
+    }
+
+    /**
+     * 执行请求前附加摘要
+     */
+    private AdvisedRequest before(AdvisedRequest advisedRequest) {
+        ConversationSummary summary = summarizer.summary(conversationId(advisedRequest.adviseContext()));
+        if (summary.isEmpty())
+            return advisedRequest;
+        // 摘要直接拼接到系统提示词中：去掉花括号，避免设置了 systemParams 时被当作模板变量解析
+        String text = summary.text().replace('{', '(').replace('}', ')');
+        String systemText = advisedRequest.systemText() == null ? "" : advisedRequest.systemText();
+        return AdvisedRequest.from(advisedRequest)
+                .systemText(systemText + summarySection + text)
+                .build();
+    }
+
+    @Override
+    public AdvisedResponse aroundCall(AdvisedRequest advisedRequest, CallAroundAdvisorChain chain) {
+        if (summarizer == null)
+            return chain.nextAroundCall(advisedRequest);
+        AdvisedResponse advisedResponse = chain.nextAroundCall(this.before(advisedRequest));
+        summarizer.requestRefresh(conversationId(advisedResponse.adviseContext()));
+        return advisedResponse;
+    }
+
+    @Override
+    public Flux<AdvisedResponse> aroundStream(AdvisedRequest advisedRequest, StreamAroundAdvisorChain chain) {
+        if (summarizer == null)
+            return chain.nextAroundStream(advisedRequest);
+        return new MessageAggregator().aggregateAdvisedResponse(chain.nextAroundStream(this.before(advisedRequest)),
+                advisedResponse -> summarizer.requestRefresh(conversationId(advisedResponse.adviseContext())));
+    }
+
+    private static String conversationId(Map<String, Object> context) {
+        Object conversationId = context.get(CHAT_MEMORY_CONVERSATION_ID_KEY);
+        return conversationId != null ? conversationId.toString() : DEFAULT_CHAT_MEMORY_CONVERSATION_ID;
+    }
+
+    @Override
+    public String getName() {
+        return this.getClass().getSimpleName();
+    }
+
+    @Override
+    public int getOrder() {
+        return 0;
+    }
+}
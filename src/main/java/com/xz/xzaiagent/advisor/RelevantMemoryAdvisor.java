@@ -0,0 +1,78 @@
+package com.xz.xzaiagent.advisor;
+
+import com.xz.xzaiagent.chatmemory.ConversationMemoryIndex;
+import org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor;
+import org.springframework.ai.chat.client.advisor.api.*;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.MessageAggregator;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按相关性注入历史的对话记忆 Advisor（替代按条数截取的 MessageChatMemoryAdvisor）
+ * <p>
+ * 历史消息由 ConversationMemoryIndex 选出：最近几轮 + 与本次问题最相关的更早轮次，总量受 token 预算限制；
+ * CHAT_MEMORY_RETRIEVE_SIZE_KEY 仍然生效，作为注入消息条数的上限。消息的保存与 MessageChatMemoryAdvisor 相同，并同步追加到索引
+ */
+public class RelevantMemoryAdvisor extends AbstractChatMemoryAdvisor<ChatMemory> {
+
+    private final ConversationMemoryIndex memoryIndex;
+
+    public RelevantMemoryAdvisor(ChatMemory chatMemory, ConversationMemoryIndex memoryIndex) {
+        super(chatMemory, DEFAULT_CHAT_MEMORY_CONVERSATION_ID, DEFAULT_CHAT_MEMORY_RESPONSE_SIZE, true);
+        this.memoryIndex = memoryIndex;
+    }
+
+    @Override
+    public AdvisedResponse aroundCall(AdvisedRequest advisedRequest, CallAroundAdvisorChain chain) {
+        AdvisedResponse advisedResponse = chain.nextAroundCall(this.before(advisedRequest));
+        this.observeAfter(advisedResponse);
+        return advisedResponse;
+    }
+
+    @Override
+    public Flux<AdvisedResponse> aroundStream(AdvisedRequest advisedRequest, StreamAroundAdvisorChain chain) {
+        // 检索可能调用向量模型，放到阻塞安全的线程上执行
+        Flux<AdvisedResponse> advisedResponses = this.doNextWithProtectFromBlockingBefore(advisedRequest, chain, this::before);
+        return new MessageAggregator().aggregateAdvisedResponse(advisedResponses, this::observeAfter);
+    }
+
+    /**
+     * 注入相关历史，并保存本次用户消息
+     */
+    private AdvisedRequest before(AdvisedRequest request) {
+        String conversationId = this.doGetConversationId(request.adviseContext());
+        int retrieveSize = this.doGetChatMemoryRetrieveSize(request.adviseContext());
+
+        // 先检索再保存，避免本次问题匹配到自身
+        List<Message> memoryMessages = memoryIndex.retrieve(conversationId, request.userText(), retrieveSize);
+        List<Message> advisedMessages = new ArrayList<>(request.messages());
+        advisedMessages.addAll(memoryMessages);
+
+        UserMessage userMessage = new UserMessage(request.userText(), request.media());
+        this.getChatMemoryStore().add(conversationId, userMessage);
+        memoryIndex.append(conversationId, List.of(userMessage));
+
+        return AdvisedRequest.from(request).messages(advisedMessages).build();
+    }
+
+    /**
+     * 保存模型回复
+     */
+    private void observeAfter(AdvisedResponse advisedResponse) {
+        if (advisedResponse.response() == null)
+            return;
+        List<Message> assistantMessages = advisedResponse.response()
+                .getResults()
+                .stream()
+                .map(generation -> (Message) generation.getOutput())
+                .toList();
+        String conversationId = this.doGetConversationId(advisedResponse.adviseContext());
+        this.getChatMemoryStore().add(conversationId, assistantMessages);
+        memoryIndex.append(conversationId, assistantMessages);
+    }
+}
@@ -0,0 +1,36 @@
+package com.xz.xzaiagent.advisor.cache;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 语义回答缓存配置（app.chat.responseCache）
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "app.chat.responseCache")
+public class ResponseCacheProperties {
+
+    /**
+     * 是否启用语义回答缓存
+     */
+    private boolean enabled = true;
+
+    /**
+     * 与已缓存问题的向量相似度不低于该值时视为同一问题
+     */
+    private double similarityThreshold = 0.95;
+
+    /**
+     * 缓存条目的有效期
+     */
+    private Duration ttl = Duration.ofHours(1);
+
+    /**
+     * 缓存条目上限，超出后淘汰最久未使用的条目
+     */
+    private int maxEntries = 2000;
+}
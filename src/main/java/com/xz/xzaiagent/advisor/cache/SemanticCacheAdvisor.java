@@ -0,0 +1,147 @@
+package com.xz.xzaiagent.advisor.cache;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import org.springframework.ai.chat.client.advisor.QuestionAnswerAdvisor;
+import org.springframework.ai.chat.client.advisor.RetrievalAugmentationAdvisor;
+import org.springframework.ai.chat.client.advisor.api.*;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.model.MessageAggregator;
+import org.springframework.core.Ordered;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 语义回答缓存 Advisor：上下文完全相同时，近似的问题直接返回缓存的回答，不调用模型
+ * <p>
+ * 排在对话记忆、会话摘要等所有改写请求的 Advisor 之后（只在调度 Advisor 之前），此时系统提示词中已附加会话摘要、
+ * messages 中已是注入的历史，两者都计入作用域：只有系统提示词（含摘要）与全部历史消息都相同的请求才会互相命中，
+ * 一个会话的回答不会被返回给另一个上下文不同的会话；命中时记忆 Advisor 照常保存本轮的问答。
+ * 流式调用命中时把缓存的回答拆成小段以流的形式返回。
+ * 带工具、多模态、模板参数（结构化输出等）与 RAG 的请求不经过缓存
+ */
+public class SemanticCacheAdvisor implements CallAroundAdvisor, StreamAroundAdvisor {
+
+    /**
+     * 流式返回缓存回答时每段的字符数
+     */
+    private static final int REPLAY_CHUNK_CHARS = 16;
+
+    private final SemanticResponseCache cache;
+
+    /**
+     * 端点名，用于按端点统计命中率
+     */
+    private final String endpoint;
+
+    public SemanticCacheAdvisor(SemanticResponseCache cache, String endpoint) {
+        this.cache = cache;
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public AdvisedResponse aroundCall(AdvisedRequest advisedRequest, CallAroundAdvisorChain chain) {
+        if (!isCacheable(advisedRequest))
+            return chain.nextAroundCall(advisedRequest);
+        String scope = scope(advisedRequest);
+        SemanticResponseCache.Lookup lookup = cache.lookup(endpoint, scope, advisedRequest.userText().strip());
+        if (lookup.isHit())
+            return new AdvisedResponse(response(lookup.answer()), advisedRequest.adviseContext());
+        AdvisedResponse advisedResponse = chain.nextAroundCall(advisedRequest);
+        cache.put(scope, lookup.embedding(), text(advisedResponse));
+        return advisedResponse;
+    }
+
+    @Override
+    public Flux<AdvisedResponse> aroundStream(AdvisedRequest advisedRequest, StreamAroundAdvisorChain chain) {
+        if (!isCacheable(advisedRequest))
+            return chain.nextAroundStream(advisedRequest);
+        String scope = scope(advisedRequest);
+        // 查找会调用向量模型，放到可阻塞的线程上执行
+        return Mono.fromCallable(() -> cache.lookup(endpoint, scope, advisedRequest.userText().strip()))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(lookup -> {
+                    if (lookup.isHit())
+                        return Flux.fromIterable(chunks(lookup.answer()))
+                                .map(chunk -> new AdvisedResponse(response(chunk), advisedRequest.adviseContext()));
+                    return new MessageAggregator().aggregateAdvisedResponse(chain.nextAroundStream(advisedRequest),
+                            aggregated -> cache.put(scope, lookup.embedding(), text(aggregated)));
+                });
+    }
+
+    private boolean isCacheable(AdvisedRequest request) {
+        return cache.isEnabled()
+                && request.userText() != null && !request.userText().isBlank()
+                && request.userParams().isEmpty()
+                && request.media().isEmpty()
+                && request.functionNames().isEmpty()
+                && request.functionCallbacks().isEmpty()
+                && request.advisors().stream().noneMatch(SemanticCacheAdvisor::isRagAdvisor);
+    }
+
+    /**
+     * RAG 的回答依赖检索到的文档，不缓存（QuestionAnswerAdvisor 的 userParams 可能在本 Advisor 之后才加入，按 Advisor 类型判断）
+     */
+    private static boolean isRagAdvisor(Advisor advisor) {
+        return advisor instanceof QuestionAnswerAdvisor || advisor instanceof RetrievalAugmentationAdvisor;
+    }
+
+    /**
+     * 作用域：端点 + 完整的系统提示词（含会话摘要）+ Advisor 组合 + 全部历史消息
+     */
+    private String scope(AdvisedRequest request) {
+        StringBuilder text = new StringBuilder();
+        text.append(request.systemText()).append('\u0000');
+        text.append(request.advisors().stream().map(Advisor::getName).sorted().collect(Collectors.joining(","))).append('\u0000');
+        for (Message message : request.messages())
+            text.append(message.getMessageType()).append('\u0001').append(message.getText()).append('\u0000');
+        return endpoint + "|" + DigestUtil.sha256Hex(text.toString());
+    }
+
+    private static String text(AdvisedResponse advisedResponse) {
+        ChatResponse response = advisedResponse.response();
+        if (response == null || response.getResult() == null || response.getResult().getOutput() == null)
+            return null;
+        return response.getResult().getOutput().getText();
+    }
+
+    private static ChatResponse response(String text) {
+        return new ChatResponse(List.of(new Generation(new AssistantMessage(text))));
+    }
+
+    /**
+     * 按字符数拆分回答，不拆开代理对
+     */
+    private static List<String> chunks(String answer) {
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < answer.length()) {
+            int end = Math.min(answer.length(), start + REPLAY_CHUNK_CHARS);
+            if (end < answer.length() && Character.isHighSurrogate(answer.charAt(end - 1)))
+                end++;
+            chunks.add(answer.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    @Override
+    public String getName() {
+        return this.getClass().getSimpleName();
+    }
+
+    /**
+     * 在对话记忆、会话摘要（order 0）、RAG 等 Advisor 之后，调度 Advisor（LlmSchedulerAdvisor）之前
+     */
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE - 1000;
+    }
+}
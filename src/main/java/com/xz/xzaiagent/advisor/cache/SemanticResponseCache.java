@@ -0,0 +1,163 @@
+package com.xz.xzaiagent.advisor.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 语义回答缓存，LoveApp、SimpleChat 共享（由 SemanticCacheAdvisor 使用）
+ * <p>
+ * 每个条目保存问题的向量与模型回答，查找时在同一作用域（端点 + 系统提示词 + Advisor 组合 + 历史消息）内
+ * 取相似度最高且不低于阈值的条目；条目按 ttl 过期，总数超过上限时淘汰最久未使用的条目。
+ * 向量模型不可用时视为未命中，不影响正常对话
+ */
+@Slf4j
+@Component
+public class SemanticResponseCache {
+
+    private record Entry(String scope, float[] embedding, String answer, long expiresAt) {
+    }
+
+    /**
+     * 一次查找的结果
+     *
+     * @param embedding 问题的向量，未命中时供 put 复用；向量模型不可用时为 null
+     * @param answer    命中的回答，未命中时为 null
+     */
+    public record Lookup(float[] embedding, String answer) {
+
+        public boolean isHit() {
+            return answer != null;
+        }
+    }
+
+    private final ResponseCacheProperties properties;
+
+    private final EmbeddingModel embeddingModel;
+
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * 按访问顺序排序的 LRU 表，所有访问都在 synchronized (cache) 内进行
+     */
+    private final LinkedHashMap<Long, Entry> cache;
+
+    public SemanticResponseCache(ResponseCacheProperties properties, EmbeddingModel dashscopeEmbeddingModel, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.embeddingModel = dashscopeEmbeddingModel;
+        this.meterRegistry = meterRegistry;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= properties.getMaxEntries())
+                    return false;
+                meterRegistry.counter("chat.response.cache.evictions").increment();
+                return true;
+            }
+        };
+        Gauge.builder("chat.response.cache.size", cache, c -> {
+                    synchronized (c) {
+                        return c.size();
+                    }
+                })
+                .description("语义回答缓存条目数")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    /**
+     * 查找同一作用域内的近似问题（会调用向量模型，需在可阻塞的线程中执行）
+     *
+     * @param endpoint 端点名，用于按端点统计命中率
+     * @param scope    作用域，只在相同作用域的条目中查找
+     * @param text     用于匹配的文本（本次问题）
+     */
+    public Lookup lookup(String endpoint, String scope, String text) {
+        float[] embedding;
+        try {
+            embedding = embeddingModel.embed(text);
+        } catch (Exception e) {
+            log.warn("语义回答缓存计算向量失败，跳过缓存：{}", e.getMessage());
+            record(endpoint, "error");
+            return new Lookup(null, null);
+        }
+
+        long now = System.currentTimeMillis();
+        Long bestId = null;
+        double bestScore = properties.getSimilarityThreshold();
+        synchronized (cache) {
+            for (Iterator<Map.Entry<Long, Entry>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, Entry> e = it.next();
+                Entry entry = e.getValue();
+                if (entry.expiresAt() <= now) {
+                    it.remove();
+                    continue;
+                }
+                if (!entry.scope().equals(scope))
+                    continue;
+                double score = cosine(embedding, entry.embedding());
+                if (score >= bestScore) {
+                    bestScore = score;
+                    bestId = e.getKey();
+                }
+            }
+            if (bestId != null) {
+                // get 更新 LRU 顺序
+                Entry hit = cache.get(bestId);
+                record(endpoint, "hit");
+                log.info("{} 命中语义回答缓存，相似度 {}", endpoint, String.format("%.3f", bestScore));
+                return new Lookup(embedding, hit.answer());
+            }
+        }
+        record(endpoint, "miss");
+        return new Lookup(embedding, null);
+    }
+
+    /**
+     * 缓存模型回答
+     *
+     * @param embedding lookup 返回的问题向量，为 null 时不缓存
+     */
+    public void put(String scope, float[] embedding, String answer) {
+        if (embedding == null || answer == null || answer.isBlank())
+            return;
+        Entry entry = new Entry(scope, embedding, answer, System.currentTimeMillis() + properties.getTtl().toMillis());
+        synchronized (cache) {
+            cache.put(nextId.incrementAndGet(), entry);
+        }
+    }
+
+    private void record(String endpoint, String result) {
+        Counter.builder("chat.response.cache.requests")
+                .description("语义回答缓存请求数")
+                .tag("endpoint", endpoint)
+                .tag("result", result)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        if (a == null || b == null || a.length != b.length)
+            return 0;
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+    }
+}
@@ -1,37 +1,114 @@
 package com.xz.xzaiagent.agent;
 
 import com.xz.xzaiagent.agent.model.AgentState;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Registry to track active agents / SSE emitters / reactive disposables by chatId/requestId.
+ * <p>
+ * The registry is bounded: entries that are no longer active (agent not running, no live stream) expire after
+ * app.agent.registry.idleTtl without access, and when more than maxEntries are registered the least recently
+ * accessed entries are evicted, inactive ones first. Emitter references are dropped as soon as the emitter
+ * completes, times out or fails, and disposed subscriptions are dropped on the next sweep.
  */
+@Slf4j
 @Component
 public class ActiveAgentRegistry {
 
+    /**
+     * Message sent to the client when a stream is terminated by the user
+     */
+    public static final String TERMINATED_MESSAGE = "任务已被用户终止。";
+
     public static class Entry {
         public BaseAgent agent;
         public SseEmitter emitter;
         public Disposable disposable;
+        private volatile long lastAccess = System.currentTimeMillis();
 
         public Entry(BaseAgent agent, SseEmitter emitter, Disposable disposable) {
             this.agent = agent;
             this.emitter = emitter;
             this.disposable = disposable;
         }
+
+        private void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+
+        /**
+         * Whether the entry still backs work in progress: a running agent or a live reactive subscription
+         */
+        private boolean isActive() {
+            Disposable d = disposable;
+            return (agent != null && agent.getState() == AgentState.RUNNING) || (d != null && !d.isDisposed());
+        }
     }
 
     private final Map<String, Entry> map = new ConcurrentHashMap<>();
 
+    private final int maxEntries;
+
+    private final Duration idleTtl;
+
+    private final ScheduledExecutorService sweeper;
+
+    private final Counter idleEvictions;
+
+    private final Counter overflowEvictions;
+
+    public ActiveAgentRegistry(@Value("${app.agent.registry.maxEntries:10000}") int maxEntries,
+                               @Value("${app.agent.registry.idleTtl:10m}") Duration idleTtl,
+                               @Value("${app.agent.registry.sweepInterval:30s}") Duration sweepInterval,
+                               MeterRegistry meterRegistry) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.idleTtl = idleTtl;
+
+        Gauge.builder("agent.registry.entries", map, Map::size)
+                .description("ActiveAgentRegistry 中的条目数")
+                .register(meterRegistry);
+        Gauge.builder("agent.registry.retained.messages", this, ActiveAgentRegistry::retainedMessages)
+                .description("ActiveAgentRegistry 持有的智能体上下文消息总数")
+                .register(meterRegistry);
+        this.idleEvictions = evictionCounter(meterRegistry, "idle");
+        this.overflowEvictions = evictionCounter(meterRegistry, "overflow");
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("agent-registry-sweeper").daemon(true).factory());
+        long intervalMillis = Math.max(1, sweepInterval.toMillis());
+        this.sweeper.scheduleWithFixedDelay(this::sweep, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
     public void register(String id, BaseAgent agent, SseEmitter emitter, Disposable disposable) {
         if (id == null) return;
-        map.put(id, new Entry(agent, emitter, disposable));
+        Entry entry = new Entry(agent, emitter, disposable);
+        watch(entry, emitter);
+        map.put(id, entry);
+        if (map.size() > maxEntries)
+            evictOverflow();
     }
 
     public void unregister(String id) {
@@ -39,6 +116,77 @@ public class ActiveAgentRegistry {
         map.remove(id);
     }
 
+    /**
+     * Track a reactive SSE stream under the given id. The entry is registered on subscription and removed when the
+     * stream completes, fails or the client disconnects; terminate() stops the stream and appends TERMINATED_MESSAGE
+     * (the reactive counterpart of completing the emitter).
+     */
+    public Flux<ServerSentEvent<String>> track(String id, BaseAgent agent, Flux<ServerSentEvent<String>> events) {
+        if (id == null) return events;
+        return Flux.defer(() -> {
+            Sinks.Empty<Void> stop = Sinks.empty();
+            AtomicBoolean terminated = new AtomicBoolean();
+            Entry entry = new Entry(agent, null, () -> {
+                terminated.set(true);
+                stop.tryEmitEmpty();
+            });
+            map.put(id, entry);
+            if (map.size() > maxEntries)
+                evictOverflow();
+            return events.takeUntilOther(stop.asMono())
+                    .concatWith(Mono.fromSupplier(() -> terminated.get() ? ServerSentEvent.builder(TERMINATED_MESSAGE).build() : null))
+                    .doFinally(signal -> map.remove(id, entry));
+        });
+    }
+
+    /**
+     * Reattach a client that reconnected with Last-Event-ID to the agent stream registered under the given id,
+     * replaying only the events it missed. The entry's emitter is replaced by the new connection.
+     *
+     * @return the new emitter, or null if there is no resumable run for this id / event id
+     */
+    public SseEmitter resume(String id, String lastEventId) {
+        if (id == null) return null;
+        Entry entry = map.get(id);
+        if (entry == null || entry.agent == null) return null;
+        entry.touch();
+        SseEmitter emitter = entry.agent.resumeStream(lastEventId);
+        if (emitter != null) {
+            watch(entry, emitter);
+            entry.emitter = emitter;
+        }
+        return emitter;
+    }
+
+    /**
+     * Attach a new connection to the agent stream still running under the given id, replaying all buffered events
+     * from the start. Used when a request for the same chatId and the same prompt arrives without Last-Event-ID,
+     * so the run is not started a second time.
+     *
+     * @return the new emitter, or null if no stream is running for this id or it was started with another prompt
+     */
+    public SseEmitter attachRunning(String id, String userPrompt) {
+        if (id == null) return null;
+        Entry entry = map.get(id);
+        if (entry == null || entry.agent == null) return null;
+        entry.touch();
+        SseEmitter emitter = entry.agent.attachStream(userPrompt);
+        if (emitter != null) {
+            watch(entry, emitter);
+            entry.emitter = emitter;
+        }
+        return emitter;
+    }
+
+    /**
+     * Whether an agent stream is still running under the given id.
+     */
+    public boolean isRunning(String id) {
+        if (id == null) return false;
+        Entry entry = map.get(id);
+        return entry != null && entry.agent != null && entry.agent.isStreamRunning();
+    }
+
     /**
      * Terminate an active entry.
      *
@@ -50,6 +198,7 @@ public class ActiveAgentRegistry {
         if (id == null) return false;
         Entry entry = map.get(id);
         if (entry == null) return false;
+        entry.touch();
 
         // dispose reactive subscription (stop current streaming work)
         if (entry.disposable != null) {
@@ -61,10 +210,14 @@ public class ActiveAgentRegistry {
             }
         }
 
+        // stop a resumable agent stream at the next step, even while no client is attached
+        if (entry.agent != null && entry.agent.getStreamJournal() != null)
+            entry.agent.getStreamJournal().terminate();
+
         // complete SSE emitter (notify client)
         if (entry.emitter != null) {
             try {
-                entry.emitter.send("任务已被用户终止。");
+                entry.emitter.send(TERMINATED_MESSAGE);
             } catch (IOException ignored) {
             } finally {
                 try {
@@ -97,6 +250,110 @@ public class ActiveAgentRegistry {
 
         return true;
     }
+
+    /**
+     * Drop the entry's emitter reference once that emitter is completed, times out or fails, so a finished
+     * connection is not retained until the entry expires
+     */
+    private static void watch(Entry entry, SseEmitter emitter) {
+        if (emitter == null) return;
+        Runnable release = () -> {
+            if (entry.emitter == emitter)
+                entry.emitter = null;
+            entry.touch();
+        };
+        emitter.onCompletion(release);
+        emitter.onTimeout(release);
+        emitter.onError(e -> release.run());
+    }
+
+    /**
+     * Periodic cleanup: drop disposed subscriptions and expire inactive entries idle for longer than idleTtl
+     */
+    private void sweep() {
+        try {
+            long expireBefore = System.currentTimeMillis() - idleTtl.toMillis();
+            map.forEach((id, entry) -> {
+                Disposable d = entry.disposable;
+                if (d != null && d.isDisposed())
+                    entry.disposable = null;
+                if (!entry.isActive() && entry.lastAccess < expireBefore && map.remove(id, entry)) {
+                    idleEvictions.increment();
+                    close(entry);
+                    log.debug("ActiveAgentRegistry entry {} expired after being idle for {}", id, idleTtl);
+                }
+            });
+        } catch (Exception e) {
+            log.warn("ActiveAgentRegistry sweep failed", e);
+        }
+    }
+
+    /**
+     * Evict least recently accessed entries until the registry is back within maxEntries, inactive entries first.
+     * Evicting an active entry does not stop its run; it only makes it unreachable for terminate / resume
+     */
+    private void evictOverflow() {
+        while (map.size() > maxEntries) {
+            Optional<Map.Entry<String, Entry>> victim = map.entrySet().stream()
+                    .min(Comparator.<Map.Entry<String, Entry>, Boolean>comparing(e -> e.getValue().isActive())
+                            .thenComparingLong(e -> e.getValue().lastAccess));
+            if (victim.isEmpty())
+                return;
+            Entry entry = victim.get().getValue();
+            if (map.remove(victim.get().getKey(), entry)) {
+                overflowEvictions.increment();
+                if (entry.isActive())
+                    log.warn("ActiveAgentRegistry is full ({} entries), evicted active entry {}", maxEntries, victim.get().getKey());
+                else
+                    close(entry);
+            }
+        }
+    }
+
+    /**
+     * Release the local handles of an inactive entry that is being evicted
+     */
+    private static void close(Entry entry) {
+        Disposable d = entry.disposable;
+        entry.disposable = null;
+        if (d != null && !d.isDisposed()) {
+            try {
+                d.dispose();
+            } catch (Exception ignored) {
+            }
+        }
+        SseEmitter emitter = entry.emitter;
+        entry.emitter = null;
+        if (emitter != null) {
+            try {
+                emitter.complete();
+            } catch (Exception ignored) {
+            }
+        }
+        entry.agent = null;
+    }
+
+    private double retainedMessages() {
+        long total = 0;
+        for (Entry entry : map.values()) {
+            BaseAgent agent = entry.agent;
+            if (agent != null)
+                total += agent.getMessageList().size();
+        }
+        return total;
+    }
+
+    private static Counter evictionCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("agent.registry.evictions")
+                .description("被移出 ActiveAgentRegistry 的条目数")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
 }
 
 
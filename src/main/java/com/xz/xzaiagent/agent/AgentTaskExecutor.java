@@ -0,0 +1,111 @@
+package com.xz.xzaiagent.agent;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 智能体 / 对话任务专用执行器，替代 CompletableFuture.runAsync 使用的 ForkJoin 公共池
+ * <p>
+ * 最多同时运行 maxConcurrency 个任务（默认使用虚拟线程），其余任务进入长度为 queueCapacity 的准入队列；
+ * 队列已满时 submit 直接返回 false，由调用方立即给客户端回复“服务繁忙”，而不是让请求无反馈地等待。
+ * 按 endpoint 记录排队耗时、运行耗时与拒绝次数。
+ */
+@Slf4j
+@Component
+public class AgentTaskExecutor {
+
+    /**
+     * 准入队列已满时回复给客户端的提示
+     */
+    public static final String BUSY_MESSAGE = "服务繁忙，请稍后重试。";
+
+    private final ThreadPoolExecutor executor;
+
+    private final MeterRegistry meterRegistry;
+
+    public AgentTaskExecutor(@Value("${app.agent.executor.virtualThreads:true}") boolean virtualThreads,
+                             @Value("${app.agent.executor.maxConcurrency:64}") int maxConcurrency,
+                             @Value("${app.agent.executor.queueCapacity:128}") int queueCapacity,
+                             MeterRegistry meterRegistry) {
+        ThreadFactory threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("agent-task-", 0).factory()
+                : Thread.ofPlatform().name("agent-task-", 0).daemon(true).factory();
+        int poolSize = Math.max(1, maxConcurrency);
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder("agent.executor.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("正在运行的智能体任务数")
+                .register(meterRegistry);
+        Gauge.builder("agent.executor.queued", executor, e -> e.getQueue().size())
+                .description("准入队列中等待的任务数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 提交任务
+     *
+     * @param endpoint 任务来源，用作指标标签
+     * @param task     任务
+     * @return 是否被接受；false 表示准入队列已满，调用方应立即回复 BUSY_MESSAGE
+     */
+    public boolean submit(String endpoint, Runnable task) {
+        long enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long startedAt = System.nanoTime();
+                queueWaitTimer(endpoint).record(startedAt - enqueuedAt, TimeUnit.NANOSECONDS);
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("{} 任务执行出错", endpoint, e);
+                } finally {
+                    runTimer(endpoint).record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Counter.builder("agent.executor.rejected")
+                    .description("因准入队列已满被拒绝的任务数")
+                    .tag("endpoint", endpoint)
+                    .register(meterRegistry)
+                    .increment();
+            log.warn("{} 任务被拒绝：准入队列已满（active={}, queued={}）", endpoint, executor.getActiveCount(), executor.getQueue().size());
+            return false;
+        }
+    }
+
+    private Timer queueWaitTimer(String endpoint) {
+        return Timer.builder("agent.executor.queue.wait")
+                .description("任务在准入队列中的等待时间")
+                .tag("endpoint", endpoint)
+                .register(meterRegistry);
+    }
+
+    private Timer runTimer(String endpoint) {
+        return Timer.builder("agent.executor.run")
+                .description("任务运行时间")
+                .tag("endpoint", endpoint)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
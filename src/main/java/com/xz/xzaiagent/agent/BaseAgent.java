@@ -2,6 +2,9 @@ package com.xz.xzaiagent.agent;
 
 import cn.hutool.core.util.StrUtil;
 import com.xz.xzaiagent.agent.model.AgentState;
+import com.xz.xzaiagent.sse.SseEventJournal;
+import com.xz.xzaiagent.sse.SseOutbox;
+import com.xz.xzaiagent.sse.SseOutboxFactory;
 import com.xz.xzaiagent.utils.TextUtil;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -9,13 +12,15 @@ import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.MessageType;
 import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import jakarta.annotation.Resource;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.xz.xzaiagent.agent.prompt.LiteMind.STUCK_PROMPT_CH;
 
@@ -80,6 +85,43 @@ public abstract class BaseAgent {
     @Resource
     private ActiveAgentRegistry activeAgentRegistry;
 
+    @Resource
+    private AgentTaskExecutor agentTaskExecutor;
+
+    /**
+     * 增量输出的 SSE 事件名，与按步骤推送的默认 message 事件区分，旧客户端只监听 message 时不受影响
+     */
+    public static final String PARTIAL_EVENT = "thinking";
+
+    /**
+     * runByFlux 中最多排队等待下游读取的增量输出事件数，超出后丢弃新的增量输出
+     */
+    private static final int MAX_QUEUED_PARTIALS = 256;
+
+    @Resource
+    private SseOutboxFactory sseOutboxFactory;
+
+    /**
+     * runByStream 的事件日志：步骤事件的重放缓冲与当前连接，供子类在步骤内部推送增量输出（如思考阶段逐 token 输出），
+     * 运行结束后保留，供迟到的重新连接取回缺失事件
+     */
+    private volatile SseEventJournal streamJournal;
+
+    /**
+     * runByStream 当前运行的用户提示词，同一会话再次请求时只有提示词相同才接上该运行
+     */
+    private volatile String streamPrompt;
+
+    /**
+     * runByFlux 期间的事件通道，作用与 streamJournal 相同
+     */
+    private volatile FluxSink<ServerSentEvent<String>> streamSink;
+
+    /**
+     * runByFlux 中已推入、尚未被下游读取的增量输出事件数
+     */
+    private final AtomicInteger queuedPartials = new AtomicInteger();
+
     /**
      * 运行代理
      *
@@ -133,29 +175,36 @@ public abstract class BaseAgent {
 
     /**
      * 运行代理（流式输出）
+     * <p>
+     * 步骤事件带 id 并保存在 streamJournal 中：连接断开后运行继续，客户端带 Last-Event-ID 重新连接时通过 resumeStream 接上，
+     * 只重放缺失的事件；断开超过 app.sse.resume.detachGrace 仍未重新连接时在下一个步骤前停止
      *
      * @param userPrompt 用户提示词
      * @return 执行结果
      */
     public SseEmitter runByStream(String userPrompt) {
         SseEmitter sseEmitter = new SseEmitter(300000L);
+        // 事件经有界发送队列由专属线程写出，客户端读取过慢时不阻塞智能体线程（按配置的策略丢弃增量输出或断开）
+        SseEventJournal journal = outboxFactory().createJournal(sseEmitter);
+        this.streamJournal = journal;
+        this.streamPrompt = userPrompt;
+        // 握手事件在任何步骤之前写入，客户端从第一个事件起就持有 Last-Event-ID，最长的首步等待期间断线也能接上
+        String handshake = streamHandshake();
+        if (handshake != null)
+            journal.sendHandshake(handshake);
 
         // 使用线程异步处理，避免阻塞主线程，否则会等到循环执行完才把 sseEmitter 返回出去，结果还是同步调用
-        CompletableFuture.runAsync(() -> {
+        boolean accepted = submitTask(() -> {
             // 基础校验
-            try {
-                if (this.state != AgentState.IDLE) {
-                    safeSend(sseEmitter, "当前状态无法启动智能体: " + this.state);
-                    sseEmitter.complete();
-                    return;
-                }
-                if (StrUtil.isBlank(userPrompt)) {
-                    safeSend(sseEmitter, "用户提示词消息内容不能为空，无法启动智能体");
-                    sseEmitter.complete();
-                    return;
-                }
-            } catch (Exception e) {
-                sseEmitter.completeWithError(e);
+            if (this.state != AgentState.IDLE) {
+                safeSend(journal, "当前状态无法启动智能体: " + this.state);
+                completeStream(journal);
+                return;
+            }
+            if (StrUtil.isBlank(userPrompt)) {
+                safeSend(journal, "用户提示词消息内容不能为空，无法启动智能体");
+                completeStream(journal);
+                return;
             }
 
             // 状态改变
@@ -166,6 +215,12 @@ public abstract class BaseAgent {
             try {
                 // 执行循环
                 while (currentStep < maxSteps && this.state != AgentState.FINISHED) {
+                    // 用户终止，或连接断开后迟迟没有重新连接
+                    if (journal.isAbandoned()) {
+                        log.info("流式运行已无客户端连接，停止执行");
+                        this.state = AgentState.FINISHED;
+                        break;
+                    }
                     currentStep++;
                     log.info("当前执行步骤：{}/{}", currentStep, maxSteps);
 
@@ -180,78 +235,267 @@ public abstract class BaseAgent {
                     if (StrUtil.isNotBlank(res)) {
                         // 三元表达式优先级 < 字符串拼接的优先级
                         // 运行时在 currentStep > 1 时只会返回 "\n"，safeSend 会把只含空白/换行的消息视为空并忽略，导致只有第1步的内容被下发，后续步骤被丢弃
-                        safeSend(sseEmitter, "【步骤" + currentStep + "】" + res);
+                        safeSend(journal, "【步骤" + currentStep + "】" + res);
                     }
                 }
 
                 if (currentStep >= maxSteps) {
                     currentStep = 0;
                     this.state = AgentState.IDLE;
-                    safeSend(sseEmitter, "已达到最大执行步骤 (" + maxSteps + ")，任务已终止！");
+                    safeSend(journal, "已达到最大执行步骤 (" + maxSteps + ")，任务已终止！");
                 }
-                // 正常完成
-                sseEmitter.complete();
             } catch (Exception e) {
                 this.state = AgentState.ERROR;
                 String errMsg = "智能体执行过程中出错：" + e;
                 log.error(errMsg, e);
-                try {
-                    safeSend(sseEmitter, errMsg);
-                    sseEmitter.complete();
-                } catch (IOException ex) {
-                    sseEmitter.completeWithError(ex);
-                }
+                safeSend(journal, errMsg);
             } finally {
+                // 结束连接；journal 保留在智能体上，运行结束后重新连接的客户端仍可取回缺失的事件
+                completeStream(journal);
                 this.cleanUp();
             }
         });
 
-        // 设置超时回调
-        sseEmitter.onTimeout(() -> {
-            this.state = AgentState.ERROR;
-            this.cleanUp();
-            log.warn("SSE 连接超时。");
-        });
+        // 准入队列已满，立即回复“服务繁忙”，不让客户端无反馈地等待
+        if (!accepted) {
+            safeSend(journal, AgentTaskExecutor.BUSY_MESSAGE);
+            completeStream(journal);
+        }
 
-        // 设置完成回调
-        sseEmitter.onCompletion(() -> {
-            if (this.state == AgentState.RUNNING)
-                this.state = AgentState.FINISHED;
-            this.cleanUp();
-            log.info("SSE 连接完毕。");
-        });
+        // 超时或断开只影响这一个连接，运行是否继续由 journal.isAbandoned 决定
+        sseEmitter.onTimeout(() -> log.warn("SSE 连接超时。"));
+        sseEmitter.onCompletion(() -> log.info("SSE 连接完毕。"));
+
+        return sseEmitter;
+    }
+
+    /**
+     * 重新连接 runByStream 的运行：重放 lastEventId 之后的事件，之后的事件推送到返回的新连接
+     *
+     * @param lastEventId 客户端收到的最后一个事件 id（Last-Event-ID 请求头）
+     * @return 新连接；没有可恢复的运行或 lastEventId 不属于当前运行时返回 null
+     */
+    public SseEmitter resumeStream(String lastEventId) {
+        SseEventJournal journal = this.streamJournal;
+        if (journal == null || StrUtil.isBlank(lastEventId))
+            return null;
+        SseEmitter sseEmitter = new SseEmitter(300000L);
+        SseOutbox outbox = outboxFactory().create(sseEmitter);
+        if (!journal.attach(outbox, lastEventId.trim())) {
+            outbox.complete();
+            return null;
+        }
+        return sseEmitter;
+    }
 
+    /**
+     * 同一会话以相同的提示词再次请求时接上仍在进行的 runByStream 运行，从头重放缓冲中的全部事件（客户端没有 Last-Event-ID 时使用）
+     *
+     * @param userPrompt 本次请求的用户提示词
+     * @return 新连接；运行已结束、已被终止或提示词不同时返回 null
+     */
+    public SseEmitter attachStream(String userPrompt) {
+        SseEventJournal journal = this.streamJournal;
+        if (journal == null || journal.isCompleted() || !StrUtil.equals(userPrompt, this.streamPrompt))
+            return null;
+        SseEmitter sseEmitter = new SseEmitter(300000L);
+        SseOutbox outbox = outboxFactory().create(sseEmitter);
+        if (!journal.attachFromStart(outbox)) {
+            outbox.complete();
+            return null;
+        }
         return sseEmitter;
     }
 
+    /**
+     * runByStream 的运行是否仍在进行
+     */
+    public boolean isStreamRunning() {
+        SseEventJournal journal = this.streamJournal;
+        return journal != null && !journal.isCompleted();
+    }
+
+    /**
+     * 发送结束标记（与简单对话相同的 [DONE]）并结束 runByStream 的连接，客户端据此区分正常结束与断线（断线时自动重连）
+     */
+    private static void completeStream(SseEventJournal journal) {
+        journal.send("[DONE]");
+        journal.complete();
+    }
+
+    /**
+     * runByStream 的握手事件内容（如 chatId），作为第一个带 id 的事件发送；为 null 时不发送
+     */
+    protected String streamHandshake() {
+        return null;
+    }
+
+    private SseOutboxFactory outboxFactory() {
+        return this.sseOutboxFactory != null ? this.sseOutboxFactory : SseOutboxFactory.standalone();
+    }
+
+    /**
+     * 运行代理（响应式流式输出）：与 runByStream 推送相同的内容，返回 Flux 由框架写出，不占用 SseEmitter 与请求线程
+     * <p>
+     * 执行循环仍由智能体执行器运行（步骤内部的模型与工具调用是阻塞的），每步结果推入 Flux；
+     * 客户端断开或订阅被取消时智能体在当前步骤结束后停止。写出遵循客户端的需求：客户端读取过慢时步骤结果在缓冲中等待，
+     * 增量输出最多排队 MAX_QUEUED_PARTIALS 条，超出部分被丢弃
+     *
+     * @param userPrompt 用户提示词
+     * @return 执行结果事件流（步骤结果为默认事件，增量输出为 PARTIAL_EVENT 事件）
+     */
+    public Flux<ServerSentEvent<String>> runByFlux(String userPrompt) {
+        return Flux.<ServerSentEvent<String>>create(sink -> {
+            if (this.state != AgentState.IDLE) {
+                sink.next(messageEvent("当前状态无法启动智能体: " + this.state));
+                sink.complete();
+                return;
+            }
+            if (StrUtil.isBlank(userPrompt)) {
+                sink.next(messageEvent("用户提示词消息内容不能为空，无法启动智能体"));
+                sink.complete();
+                return;
+            }
+            queuedPartials.set(0);
+            this.streamSink = sink;
+            // 正常结束、取消、出错都会触发
+            sink.onDispose(() -> {
+                this.streamSink = null;
+                if (this.state == AgentState.RUNNING)
+                    this.state = AgentState.FINISHED;
+            });
+
+            boolean accepted = submitTask(() -> {
+                // 状态改变
+                this.state = AgentState.RUNNING;
+
+                messageList.add(new UserMessage(userPrompt));
+
+                try {
+                    // 执行循环，订阅被取消时提前结束
+                    while (currentStep < maxSteps && this.state != AgentState.FINISHED && !sink.isCancelled()) {
+                        currentStep++;
+                        log.info("当前执行步骤：{}/{}", currentStep, maxSteps);
+
+                        // 单步执行
+                        String res = step();
+
+                        // 检查是否陷入循环
+                        if (isStuck())
+                            handleStuckState();
+
+                        if (StrUtil.isNotBlank(res))
+                            sink.next(messageEvent("【步骤" + currentStep + "】" + res));
+                    }
+
+                    if (currentStep >= maxSteps) {
+                        currentStep = 0;
+                        this.state = AgentState.IDLE;
+                        sink.next(messageEvent("已达到最大执行步骤 (" + maxSteps + ")，任务已终止！"));
+                    }
+                    sink.complete();
+                } catch (Exception e) {
+                    this.state = AgentState.ERROR;
+                    String errMsg = "智能体执行过程中出错：" + e;
+                    log.error(errMsg, e);
+                    sink.next(messageEvent(errMsg));
+                    sink.complete();
+                } finally {
+                    // 在执行线程上清理，避免订阅取消时与仍在进行的步骤同时修改上下文
+                    this.cleanUp();
+                }
+            });
+
+            // 准入队列已满，立即回复“服务繁忙”
+            if (!accepted) {
+                sink.next(messageEvent(AgentTaskExecutor.BUSY_MESSAGE));
+                sink.complete();
+            }
+            // 缓冲中的步骤结果最多 maxSteps + 1 条，增量输出由 MAX_QUEUED_PARTIALS 限制
+        }, FluxSink.OverflowStrategy.BUFFER).doOnNext(event -> {
+            // 事件离开缓冲交给下游时计数减一
+            if (PARTIAL_EVENT.equals(event.event()))
+                queuedPartials.decrementAndGet();
+        });
+    }
+
+    /**
+     * 默认事件，内容与 safeSend 一样先规范化
+     */
+    private static ServerSentEvent<String> messageEvent(String message) {
+        return ServerSentEvent.builder(TextUtil.normalizeMessage(message)).build();
+    }
+
+    /**
+     * 把任务交给智能体执行器；未注入执行器时（如脱离 Spring 直接 new 出来的智能体）直接启动一个虚拟线程
+     *
+     * @return 是否被接受
+     */
+    private boolean submitTask(Runnable task) {
+        if (this.agentTaskExecutor == null) {
+            Thread.ofVirtual().name("agent-" + this.name).start(task);
+            return true;
+        }
+        return this.agentTaskExecutor.submit(this.name, task);
+    }
 
     /**
      * Helper to send SSE messages and register generated chatId if present.
      */
-    private void safeSend(SseEmitter emitter, String message) throws IOException {
+    private void safeSend(SseEventJournal journal, String message) {
         if (message == null) return;
         if (message.startsWith("__CHAT_ID__:")) {
             String genId = message.substring("__CHAT_ID__:".length()).trim();
             if (genId.matches("[0-9a-fA-F]{32}")) {
                 String normalized = genId.toLowerCase();
                 try {
-                    activeAgentRegistry.register(normalized, this, emitter, null);
+                    activeAgentRegistry.register(normalized, this, journal.emitter(), null);
                     log.info("已把生成的 chatId {} 注册进 ActiveAgentRegistry", normalized);
                 } catch (Exception e) {
                     log.warn("注册生成的 chatId 失败 {}", normalized, e);
                 }
             }
         }
+        String finalMsg;
         try {
-            String finalMsg = TextUtil.normalizeMessage(message);
-            if (finalMsg.isEmpty()) {
-                return;
-            }
-            emitter.send(finalMsg);
+            finalMsg = TextUtil.normalizeMessage(message);
         } catch (Exception e) {
             log.warn("safeSend 调用 normalizeMessage 失败，回退直接发送：{}", e.getMessage());
-            emitter.send(message);
+            finalMsg = message;
+        }
+        if (finalMsg.isEmpty()) {
+            return;
+        }
+        // 连接已断开时只写入重放缓冲
+        journal.send(finalMsg);
+    }
+
+    /**
+     * 推送步骤内部的增量输出（不做规范化，保持 token 原样），未处于流式运行或发送失败时忽略；
+     * runByStream 下作为进度事件只发给当前连接，不进入重放缓冲，客户端读取过慢时可被丢弃
+     */
+    protected void emitPartial(String chunk) {
+        if (chunk == null || chunk.isEmpty()) return;
+        FluxSink<ServerSentEvent<String>> sink = this.streamSink;
+        if (sink != null) {
+            // 客户端读取过慢、排队的增量输出达到上限时丢弃新的增量输出；步骤结果照常发送
+            if (queuedPartials.incrementAndGet() <= MAX_QUEUED_PARTIALS)
+                sink.next(ServerSentEvent.builder(chunk).event(PARTIAL_EVENT).build());
+            else
+                queuedPartials.decrementAndGet();
+            return;
         }
+        SseEventJournal journal = this.streamJournal;
+        if (journal == null) return;
+        // 客户端已断开等情况，不影响智能体继续执行
+        journal.sendProgress(SseEmitter.event().name(PARTIAL_EVENT).data(chunk));
+    }
+
+    /**
+     * 是否处于流式运行（runByStream / runByFlux），子类据此决定是否推送增量输出
+     */
+    protected boolean isStreaming() {
+        return this.streamSink != null || (this.streamJournal != null && this.state == AgentState.RUNNING);
     }
 
     /**
@@ -292,8 +536,10 @@ public abstract class BaseAgent {
     }
 
     /**
-     * 清理资源
+     * 清理资源：运行结束后释放对话上下文，智能体对象仍可能被 ActiveAgentRegistry 持有（供终止、断线重连重放），
+     * 重放只依赖 streamJournal，不需要上下文
      */
     protected void cleanUp() {
+        this.messageList = new ArrayList<>();
     }
 }
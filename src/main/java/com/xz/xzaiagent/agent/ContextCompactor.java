@@ -0,0 +1,198 @@
+package com.xz.xzaiagent.agent;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.jsoup.Jsoup;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 上下文压缩器：在每次调用 LLM 前把智能体的消息列表控制在 token 预算内
+ * <p>
+ * 始终原样保留：系统提示词、用户的原始提问、最新一条下一步提示词、最近 keepRecentToolResponses 组工具交互。
+ * 超出预算时依次：
+ * 1. 把更早的工具结果替换为简短预览（保留工具调用 id/名称，保证助手消息与工具响应仍一一对应）；
+ * 2. 去掉更早重复追加的下一步提示词；
+ * 3. 从最早开始成对丢弃“助手工具调用 + 工具响应”。
+ */
+@Slf4j
+@Component
+public class ContextCompactor {
+
+    private static final String COMPACTED_MARK = "...[已压缩，原始长度 %d 字符]";
+
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator();
+
+    /**
+     * 上下文 token 预算（含系统提示词）
+     */
+    private final int maxTokens;
+
+    /**
+     * 原样保留的最近工具交互组数
+     */
+    private final int keepRecentToolResponses;
+
+    /**
+     * 压缩后每个工具结果保留的预览字符数
+     */
+    private final int previewChars;
+
+    public ContextCompactor(@Value("${app.agent.context.maxTokens:24000}") int maxTokens,
+                            @Value("${app.agent.context.keepRecentToolResponses:2}") int keepRecentToolResponses,
+                            @Value("${app.agent.context.previewChars:200}") int previewChars) {
+        this.maxTokens = maxTokens;
+        this.keepRecentToolResponses = Math.max(0, keepRecentToolResponses);
+        this.previewChars = Math.max(0, previewChars);
+    }
+
+    /**
+     * 压缩消息列表
+     *
+     * @param messages       当前消息列表
+     * @param systemPrompt   系统提示词（单独发送，但计入预算）
+     * @param nextStepPrompt 下一步提示词，用于识别重复追加的提示消息
+     * @return 未超出预算时返回原列表，否则返回压缩后的新列表
+     */
+    public List<Message> compact(List<Message> messages, String systemPrompt, String nextStepPrompt) {
+        int systemTokens = estimate(systemPrompt);
+        int before = systemTokens + estimate(messages);
+        if (before <= maxTokens)
+            return messages;
+
+        List<Message> result = new ArrayList<>(messages);
+
+        // 1、较早的工具结果替换为预览
+        int keptToolResponses = 0;
+        for (int i = result.size() - 1; i >= 0; i--) {
+            if (result.get(i) instanceof ToolResponseMessage toolResponseMessage) {
+                if (keptToolResponses++ < keepRecentToolResponses)
+                    continue;
+                result.set(i, preview(toolResponseMessage));
+            }
+        }
+        if (systemTokens + estimate(result) <= maxTokens)
+            return logged(before, systemTokens, result);
+
+        // 2、去掉较早重复追加的下一步提示词，只保留最后一条
+        if (StrUtil.isNotBlank(nextStepPrompt)) {
+            int lastIndex = -1;
+            for (int i = result.size() - 1; i >= 0; i--) {
+                if (isNextStepPrompt(result.get(i), nextStepPrompt)) {
+                    lastIndex = i;
+                    break;
+                }
+            }
+            for (int i = lastIndex - 1; i >= 0; i--) {
+                if (isNextStepPrompt(result.get(i), nextStepPrompt))
+                    result.remove(i);
+            }
+        }
+
+        // 3、从最早开始成对丢弃工具交互，保留最近 keepRecentToolResponses 组
+        int total = systemTokens + estimate(result);
+        while (total > maxTokens) {
+            int assistantIndex = oldestDroppableToolExchange(result);
+            if (assistantIndex < 0)
+                break;
+            total -= estimate(result.remove(assistantIndex));
+            total -= estimate(result.remove(assistantIndex));
+        }
+        return logged(before, systemTokens, result);
+    }
+
+    private List<Message> logged(int before, int systemTokens, List<Message> result) {
+        int after = systemTokens + estimate(result);
+        log.info("上下文超出预算 {} tokens，已压缩：{} -> {} tokens", maxTokens, before, after);
+        return result;
+    }
+
+    private boolean isNextStepPrompt(Message message, String nextStepPrompt) {
+        return message instanceof UserMessage && nextStepPrompt.equals(message.getText());
+    }
+
+    /**
+     * 找到最早一组可丢弃的“助手工具调用 + 工具响应”，返回助手消息下标；最近 keepRecentToolResponses 组不可丢弃
+     */
+    private int oldestDroppableToolExchange(List<Message> messages) {
+        int exchanges = 0;
+        for (int i = 0; i + 1 < messages.size(); i++) {
+            if (messages.get(i) instanceof AssistantMessage && messages.get(i + 1) instanceof ToolResponseMessage)
+                exchanges++;
+        }
+        if (exchanges <= keepRecentToolResponses)
+            return -1;
+        for (int i = 0; i + 1 < messages.size(); i++) {
+            if (messages.get(i) instanceof AssistantMessage && messages.get(i + 1) instanceof ToolResponseMessage)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 把工具响应内容替换为简短预览，HTML 先提取纯文本
+     */
+    private ToolResponseMessage preview(ToolResponseMessage message) {
+        boolean changed = false;
+        List<ToolResponseMessage.ToolResponse> responses = new ArrayList<>(message.getResponses().size());
+        for (ToolResponseMessage.ToolResponse response : message.getResponses()) {
+            String data = response.responseData();
+            if (data == null || data.length() <= previewChars || isCompacted(data)) {
+                responses.add(response);
+                continue;
+            }
+            String text = data;
+            String lower = data.toLowerCase();
+            if (lower.contains("<html") || lower.contains("<body")) {
+                try {
+                    text = Jsoup.parse(data).text();
+                } catch (Exception ignored) {
+                }
+            }
+            String preview = (text.length() > previewChars ? text.substring(0, previewChars) : text)
+                    + String.format(COMPACTED_MARK, data.length());
+            responses.add(new ToolResponseMessage.ToolResponse(response.id(), response.name(), preview));
+            changed = true;
+        }
+        return changed ? new ToolResponseMessage(responses, message.getMetadata()) : message;
+    }
+
+    private boolean isCompacted(String data) {
+        return data.endsWith("字符]") && data.contains("...[已压缩，原始长度 ");
+    }
+
+    private int estimate(List<Message> messages) {
+        int total = 0;
+        for (Message message : messages)
+            total += estimate(message);
+        return total;
+    }
+
+    private int estimate(Message message) {
+        if (message instanceof ToolResponseMessage toolResponseMessage) {
+            int total = 0;
+            for (ToolResponseMessage.ToolResponse response : toolResponseMessage.getResponses())
+                total += estimate(response.name()) + estimate(response.responseData());
+            return total;
+        }
+        int total = estimate(message.getText());
+        if (message instanceof AssistantMessage assistantMessage && assistantMessage.hasToolCalls()) {
+            for (AssistantMessage.ToolCall toolCall : assistantMessage.getToolCalls())
+                total += estimate(toolCall.name()) + estimate(toolCall.arguments());
+        }
+        return total;
+    }
+
+    private int estimate(String text) {
+        return StrUtil.isEmpty(text) ? 0 : tokenCountEstimator.estimate(text);
+    }
+}
@@ -5,8 +5,9 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.model.tool.ToolCallingManager;
 import org.springframework.ai.tool.ToolCallback;
-import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import static com.xz.xzaiagent.agent.prompt.LiteMind.NEXT_STEP_PROMPT_ZH;
@@ -16,7 +17,6 @@ import static com.xz.xzaiagent.agent.prompt.LiteMind.SYSTEM_PROMPT_ZH;
  * LiteMind AI 超级智能体（拥有自主规划能力，可以直接使用）
  */
 @Setter
-@Component
 @Slf4j
 public class LiteMind extends ToolCallAgent {
 
@@ -25,10 +25,7 @@ public class LiteMind extends ToolCallAgent {
 
     public LiteMind(ToolCallback[] allTools, ChatModel dashscopeChatModel) {
         super(allTools);
-        this.setName("LiteMind");
-        this.setSystemPrompt(SYSTEM_PROMPT_ZH);
-        this.setNextStepPrompt(NEXT_STEP_PROMPT_ZH);
-        this.setMaxSteps(10);
+        init();
 
         // 初始化 AI 对话客户端
         ChatClient chatClient = ChatClient.builder(dashscopeChatModel)
@@ -37,6 +34,35 @@ public class LiteMind extends ToolCallAgent {
         this.setChatClient(chatClient);
     }
 
+    /**
+     * 使用共享的 ChatClient / ToolCallingManager / ChatOptions 创建，只分配会话级状态（见 LiteMindFactory）
+     */
+    public LiteMind(ToolCallback[] allTools, ChatClient chatClient, ToolCallingManager toolCallingManager, ChatOptions chatOptions) {
+        super(allTools, toolCallingManager, chatOptions);
+        init();
+        this.setChatClient(chatClient);
+    }
+
+    private void init() {
+        this.setName("LiteMind");
+        this.setSystemPrompt(SYSTEM_PROMPT_ZH);
+        this.setNextStepPrompt(NEXT_STEP_PROMPT_ZH);
+        this.setMaxSteps(10);
+    }
+
+    @Override
+    protected String getSchedulingChatId() {
+        return requestedChatId;
+    }
+
+    /**
+     * 把 chatId 作为第一个带 id 的事件下发，客户端据此终止任务、断线重连
+     */
+    @Override
+    protected String streamHandshake() {
+        return this.requestedChatId != null ? "__CHAT_ID__:" + this.requestedChatId : null;
+    }
+
     @Override
     public SseEmitter runByStream(String userPrompt) {
         // Call base implementation to get emitter
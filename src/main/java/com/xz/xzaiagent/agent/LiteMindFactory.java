@@ -0,0 +1,85 @@
+package com.xz.xzaiagent.agent;
+
+import com.alibaba.cloud.ai.dashscope.chat.DashScopeChatOptions;
+import com.xz.xzaiagent.advisor.MyLoggerAdvisor;
+import com.xz.xzaiagent.llm.LlmScheduler;
+import com.xz.xzaiagent.llm.LlmSchedulerAdvisor;
+import com.xz.xzaiagent.sse.SseOutboxFactory;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.model.function.FunctionCallback;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * LiteMind 工厂：ChatClient、ToolCallingManager、ChatOptions 等无状态的重量级组件只在启动时构建一次，所有请求共享
+ * <p>
+ * 每个请求只创建 LiteMind 本身，即消息列表、步骤计数、代理状态等会话级状态
+ */
+@Component
+public class LiteMindFactory {
+
+    private final ToolCallback[] allTools;
+
+    private final ChatClient chatClient;
+
+    private final ToolCallingManager toolCallingManager;
+
+    private final DashScopeChatOptions chatOptions;
+
+    private final ActiveAgentRegistry activeAgentRegistry;
+
+    private final AgentTaskExecutor agentTaskExecutor;
+
+    private final ParallelToolCallExecutor parallelToolCallExecutor;
+
+    private final ContextCompactor contextCompactor;
+
+    private final SseOutboxFactory sseOutboxFactory;
+
+    public LiteMindFactory(ToolCallback[] allTools,
+                           ChatModel dashscopeChatModel,
+                           ActiveAgentRegistry activeAgentRegistry,
+                           AgentTaskExecutor agentTaskExecutor,
+                           ParallelToolCallExecutor parallelToolCallExecutor,
+                           ContextCompactor contextCompactor,
+                           SseOutboxFactory sseOutboxFactory,
+                           LlmScheduler llmScheduler) {
+        this.allTools = allTools;
+        this.chatClient = ChatClient.builder(dashscopeChatModel)
+                // 智能体的每一步都走 AGENT 通道，让出并发给单次对话
+                .defaultAdvisors(new MyLoggerAdvisor(), new LlmSchedulerAdvisor(llmScheduler, LlmScheduler.Lane.AGENT))
+                .build();
+        this.toolCallingManager = ToolCallingManager.builder().build();
+        // 禁用 Spring AI 内置的工具调用机制，自己维护选项和消息上下文
+        // 只作为模板共享，ToolCallAgent 每次调用使用其副本，ChatClient 对 options 的写回不会影响其他会话
+        this.chatOptions = DashScopeChatOptions.builder()
+                .withProxyToolCalls(true)
+                .build();
+        this.chatOptions.setFunctionCallbacks(List.<FunctionCallback>of(allTools));
+        this.activeAgentRegistry = activeAgentRegistry;
+        this.agentTaskExecutor = agentTaskExecutor;
+        this.parallelToolCallExecutor = parallelToolCallExecutor;
+        this.contextCompactor = contextCompactor;
+        this.sseOutboxFactory = sseOutboxFactory;
+    }
+
+    /**
+     * 创建一个新的 LiteMind 会话
+     *
+     * @param chatId 对话 id，用于在 ActiveAgentRegistry 中注册
+     */
+    public LiteMind create(String chatId) {
+        LiteMind liteMind = new LiteMind(allTools, chatClient, toolCallingManager, chatOptions);
+        liteMind.setRequestedChatId(chatId);
+        liteMind.setActiveAgentRegistry(activeAgentRegistry);
+        liteMind.setAgentTaskExecutor(agentTaskExecutor);
+        liteMind.setParallelToolCallExecutor(parallelToolCallExecutor);
+        liteMind.setContextCompactor(contextCompactor);
+        liteMind.setSseOutboxFactory(sseOutboxFactory);
+        return liteMind;
+    }
+}
@@ -0,0 +1,156 @@
+package com.xz.xzaiagent.agent;
+
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.model.tool.ToolExecutionResult;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 并发工具执行器：把同一轮 LLM 响应中的多个工具调用放到虚拟线程上并发执行
+ * <p>
+ * 每轮最多同时执行 maxConcurrency 个工具，每个工具单独计时，超时或异常以错误信息作为该工具的结果返回给 LLM；
+ * 结果按原始调用顺序组装成 ToolResponseMessage，保证下一轮 think() 看到的上下文与串行执行时一致
+ */
+@Slf4j
+@Component
+public class ParallelToolCallExecutor {
+
+    /**
+     * 是否启用并发执行，关闭时回退为 ToolCallingManager 串行执行
+     */
+    @Getter
+    private final boolean enabled;
+
+    /**
+     * 单轮最大并发工具数
+     */
+    private final int maxConcurrency;
+
+    /**
+     * 单个工具的执行超时时间（从真正开始执行时计时，不含排队时间）
+     */
+    private final Duration timeout;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public ParallelToolCallExecutor(@Value("${app.agent.toolCall.parallel:true}") boolean enabled,
+                                    @Value("${app.agent.toolCall.maxConcurrency:4}") int maxConcurrency,
+                                    @Value("${app.agent.toolCall.timeout:60s}") Duration timeout) {
+        this.enabled = enabled;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.timeout = timeout;
+    }
+
+    /**
+     * 执行 chatResponse 中要求的全部工具调用
+     *
+     * @param history        调用工具前的上下文
+     * @param chatResponse   包含工具调用的 LLM 响应
+     * @param availableTools 可调用的工具
+     * @return 与 ToolCallingManager 相同结构的执行结果：history + 助手消息 + 工具响应消息
+     */
+    public ToolExecutionResult executeToolCalls(List<Message> history, ChatResponse chatResponse, ToolCallback[] availableTools) {
+        AssistantMessage assistantMessage = chatResponse.getResults().stream()
+                .map(Generation::getOutput)
+                .filter(AssistantMessage::hasToolCalls)
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No tool call requested by the chat model"));
+        List<AssistantMessage.ToolCall> toolCalls = assistantMessage.getToolCalls();
+
+        // 先解析全部工具，找不到时与 ToolCallingManager 行为一致直接抛出，不执行任何工具
+        ToolCallback[] callbacks = new ToolCallback[toolCalls.size()];
+        for (int i = 0; i < toolCalls.size(); i++) {
+            String toolName = toolCalls.get(i).name();
+            callbacks[i] = Arrays.stream(availableTools)
+                    .filter(tool -> toolName.equals(tool.getName()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No ToolCallback found for tool name: " + toolName));
+        }
+
+        Semaphore permits = new Semaphore(this.maxConcurrency);
+        List<Future<String>> futures = new ArrayList<>(toolCalls.size());
+        for (int i = 0; i < toolCalls.size(); i++) {
+            AssistantMessage.ToolCall toolCall = toolCalls.get(i);
+            ToolCallback callback = callbacks[i];
+            futures.add(executor.submit(() -> callWithPermit(permits, callback, toolCall)));
+        }
+
+        // 按原始顺序收集结果
+        List<ToolResponseMessage.ToolResponse> toolResponses = new ArrayList<>(toolCalls.size());
+        for (int i = 0; i < toolCalls.size(); i++) {
+            AssistantMessage.ToolCall toolCall = toolCalls.get(i);
+            String result;
+            try {
+                result = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new IllegalStateException("工具调用被中断", e);
+            } catch (ExecutionException e) {
+                result = failureMessage(toolCall.name(), e.getCause());
+            }
+            toolResponses.add(new ToolResponseMessage.ToolResponse(toolCall.id(), toolCall.name(), result));
+        }
+
+        List<Message> conversationHistory = new ArrayList<>(history);
+        conversationHistory.add(assistantMessage);
+        conversationHistory.add(new ToolResponseMessage(toolResponses, Map.of()));
+        return ToolExecutionResult.builder()
+                .conversationHistory(conversationHistory)
+                .build();
+    }
+
+    /**
+     * 获取并发许可后执行单个工具，许可获取后才开始计算超时
+     */
+    private String callWithPermit(Semaphore permits, ToolCallback callback, AssistantMessage.ToolCall toolCall) throws InterruptedException {
+        permits.acquire();
+        Future<String> call = executor.submit(() -> callback.call(toolCall.arguments(), new ToolContext(Map.of())));
+        try {
+            return call.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            call.cancel(true);
+            log.warn("工具 {} 执行超时（{} ms），已取消", toolCall.name(), timeout.toMillis());
+            return String.format("工具 %s 执行超时（超过 %d 秒），已取消", toolCall.name(), timeout.toSeconds());
+        } catch (ExecutionException e) {
+            return failureMessage(toolCall.name(), e.getCause());
+        } catch (InterruptedException e) {
+            call.cancel(true);
+            throw e;
+        } finally {
+            permits.release();
+        }
+    }
+
+    private String failureMessage(String toolName, Throwable cause) {
+        log.error("工具 {} 执行出错：{}", toolName, cause == null ? "unknown" : cause.getMessage());
+        return String.format("工具 %s 执行失败：%s", toolName, cause == null ? "unknown" : cause.getMessage());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -4,23 +4,30 @@ import cn.hutool.core.collection.CollUtil;
 import cn.hutool.core.util.StrUtil;
 import com.alibaba.cloud.ai.dashscope.chat.DashScopeChatOptions;
 import com.xz.xzaiagent.agent.model.AgentState;
+import com.xz.xzaiagent.llm.LlmSchedulerAdvisor;
 import com.xz.xzaiagent.utils.TextUtil;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.ToolResponseMessage;
 import org.springframework.ai.chat.messages.UserMessage;
 import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
 import org.springframework.ai.chat.prompt.ChatOptions;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.model.tool.ToolCallingManager;
 import org.springframework.ai.model.tool.ToolExecutionResult;
 import org.springframework.ai.tool.ToolCallback;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import org.jsoup.Jsoup;
@@ -55,14 +62,31 @@ public class ToolCallAgent extends ReActAgent {
 
     private final ChatOptions chatOptions;
 
+    /**
+     * 并发工具执行器（可选），为空或未启用时使用 toolCallingManager 串行执行
+     */
+    private ParallelToolCallExecutor parallelToolCallExecutor;
+
+    /**
+     * 上下文压缩器（可选），为空时每轮发送完整的消息列表
+     */
+    private ContextCompactor contextCompactor;
+
     public ToolCallAgent(ToolCallback[] availableTools) {
-        super();
-        this.availableTools = availableTools;
-        this.toolCallingManager = ToolCallingManager.builder().build();
         // 禁用 Spring AI 内置的工具调用机制，自己维护选项和消息上下文
-        this.chatOptions = DashScopeChatOptions.builder()
+        this(availableTools, ToolCallingManager.builder().build(), DashScopeChatOptions.builder()
                 .withProxyToolCalls(true)
-                .build();
+                .build());
+    }
+
+    /**
+     * 使用外部共享的工具调用管理者和选项（两者均无会话状态，可在多个智能体间复用；选项只作为模板，每次调用使用其副本）
+     */
+    public ToolCallAgent(ToolCallback[] availableTools, ToolCallingManager toolCallingManager, ChatOptions chatOptions) {
+        super();
+        this.availableTools = availableTools;
+        this.toolCallingManager = toolCallingManager;
+        this.chatOptions = chatOptions;
     }
 
     /**
@@ -78,18 +102,27 @@ public class ToolCallAgent extends ReActAgent {
             getMessageList().add(userMessage);
         }
 
-        // 2、调用 LLM，记录响应结果，用于后续 Act
+        // 2、上下文超出 token 预算时先压缩较早的工具结果，避免每轮 prompt 持续膨胀
+        if (this.contextCompactor != null)
+            setMessageList(this.contextCompactor.compact(getMessageList(), getSystemPrompt(), getNextStepPrompt()));
+
+        // 3、调用 LLM，记录响应结果，用于后续 Act
+        // ChatClient 会把 tools 等写回传入的 options，每次调用使用共享选项的副本，避免并发会话互相覆盖
         List<Message> messageList = getMessageList();
-        Prompt prompt = new Prompt(messageList, this.chatOptions);
+        Prompt prompt = new Prompt(messageList, this.chatOptions.copy());
         try {
-            this.toolCallChatResponse = getChatClient()
+            // 流式运行时逐 token 推送思考内容，缩短客户端首字节时间；同步运行时保持阻塞调用
+            this.toolCallChatResponse = isStreaming()
+                    ? streamThink(prompt)
+                    : getChatClient()
                     .prompt(prompt)
                     .system(getSystemPrompt())
                     .tools(availableTools)
+                    .advisors(this::schedulingParams)
                     .call()
                     .chatResponse();
 
-            // 3、解析响应结果，获取要调用的工具
+            // 4、解析响应结果，获取要调用的工具
             // 获取助手信息
             AssistantMessage assistantMessage = this.toolCallChatResponse.getResult().getOutput();
             // 获取要调用的工具列表
@@ -124,14 +157,81 @@ public class ToolCallAgent extends ReActAgent {
         }
     }
 
+    /**
+     * 模型调用调度（LlmSchedulerAdvisor）按会话限制并发时使用的会话 id，为 null 时只受全局与通道上限限制
+     */
+    protected String getSchedulingChatId() {
+        return null;
+    }
+
+    private void schedulingParams(ChatClient.AdvisorSpec spec) {
+        String chatId = getSchedulingChatId();
+        if (chatId != null)
+            spec.param(LlmSchedulerAdvisor.CHAT_ID_KEY, chatId);
+    }
+
+    /**
+     * 以流式方式调用 LLM：文本增量实时推送给客户端，同时聚合文本与工具调用，返回与阻塞调用等价的完整响应
+     */
+    private ChatResponse streamThink(Prompt prompt) {
+        StringBuilder text = new StringBuilder();
+        // 工具调用按 id 聚合；分片中 id 为空时视为上一个工具调用的参数续写
+        Map<String, AssistantMessage.ToolCall> toolCalls = new LinkedHashMap<>();
+        AtomicReference<String> lastToolCallId = new AtomicReference<>();
+        AtomicReference<ChatResponse> lastChunk = new AtomicReference<>();
+
+        getChatClient()
+                .prompt(prompt)
+                .system(getSystemPrompt())
+                .tools(availableTools)
+                .advisors(this::schedulingParams)
+                .stream()
+                .chatResponse()
+                .doOnNext(chunk -> {
+                    if (chunk.getResult() == null || chunk.getResult().getOutput() == null)
+                        return;
+                    lastChunk.set(chunk);
+                    AssistantMessage output = chunk.getResult().getOutput();
+                    if (StrUtil.isNotEmpty(output.getText())) {
+                        text.append(output.getText());
+                        emitPartial(output.getText());
+                    }
+                    for (AssistantMessage.ToolCall toolCall : output.getToolCalls()) {
+                        String id = StrUtil.isNotBlank(toolCall.id()) ? toolCall.id() : lastToolCallId.get();
+                        if (id == null)
+                            id = String.valueOf(toolCalls.size());
+                        AssistantMessage.ToolCall previous = toolCalls.get(id);
+                        toolCalls.put(id, previous == null ? toolCall : new AssistantMessage.ToolCall(
+                                id,
+                                previous.type(),
+                                StrUtil.isNotBlank(previous.name()) ? previous.name() : toolCall.name(),
+                                StrUtil.nullToEmpty(previous.arguments()) + StrUtil.nullToEmpty(toolCall.arguments())));
+                        lastToolCallId.set(id);
+                    }
+                })
+                .blockLast();
+
+        ChatResponse last = lastChunk.get();
+        if (last == null)
+            throw new IllegalStateException("LLM 流式响应为空");
+        AssistantMessage assistantMessage = new AssistantMessage(text.toString(),
+                last.getResult().getOutput().getMetadata(), new ArrayList<>(toolCalls.values()));
+        return new ChatResponse(List.of(new Generation(assistantMessage, last.getResult().getMetadata())), last.getMetadata());
+    }
+
     @Override
     public String act(String thinkMsg) {
         if (!this.toolCallChatResponse.hasToolCalls())
             return thinkMsg + "无需调用工具。";
 
-        // 调用工具
-        Prompt prompt = new Prompt(getMessageList(), this.getChatOptions());
-        ToolExecutionResult toolExecutionResult = this.toolCallingManager.executeToolCalls(prompt, this.toolCallChatResponse);
+        // 调用工具：同一轮的多个工具调用之间互不依赖，启用时并发执行，结果仍按原始调用顺序返回
+        ToolExecutionResult toolExecutionResult;
+        if (this.parallelToolCallExecutor != null && this.parallelToolCallExecutor.isEnabled()) {
+            toolExecutionResult = this.parallelToolCallExecutor.executeToolCalls(getMessageList(), this.toolCallChatResponse, this.availableTools);
+        } else {
+            Prompt prompt = new Prompt(getMessageList(), this.chatOptions.copy());
+            toolExecutionResult = this.toolCallingManager.executeToolCalls(prompt, this.toolCallChatResponse);
+        }
 
         // 记录信息的上下文，conversationHistory 已经包含了助手信息和工具调用返回的结果
         setMessageList(toolExecutionResult.conversationHistory());
@@ -179,9 +279,9 @@ public class ToolCallAgent extends ReActAgent {
     }
 
     /**
-     * 格式化工具输出，针对 HTML/JSON/长文本做友好预览和截断
+     * 格式化工具输出，针对 HTML/JSON/长文本做友好预览和截断（包级可见，供基准测试调用）
      */
-    private String formatToolOutput(String data) {
+    String formatToolOutput(String data) {
         if (StrUtil.isBlank(data)) return "";
         String trimmed = data.trim();
         try {
@@ -228,4 +328,10 @@ public class ToolCallAgent extends ReActAgent {
             setState(AgentState.FINISHED);
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    protected void cleanUp() {
+        super.cleanUp();
+        this.toolCallChatResponse = null;
+    }
+}
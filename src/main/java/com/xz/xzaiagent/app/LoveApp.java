@@ -2,14 +2,17 @@ package com.xz.xzaiagent.app;
 
 import com.xz.xzaiagent.advisor.MyLoggerAdvisor;
 import com.xz.xzaiagent.advisor.ReReadingAdvisor;
-import com.xz.xzaiagent.chatmemory.InFileChatMemory;
+import com.xz.xzaiagent.advisor.cache.SemanticCacheAdvisor;
+import com.xz.xzaiagent.advisor.cache.SemanticResponseCache;
+import com.xz.xzaiagent.llm.LlmScheduler;
+import com.xz.xzaiagent.llm.LlmSchedulerAdvisor;
 import com.xz.xzaiagent.rag.CustomRetrievalAugmentationAdvisorFactory;
 import com.xz.xzaiagent.rag.LoveAppRagCloudAdvisorConfig;
 import com.xz.xzaiagent.rag.MyRewriteQueryTransformer;
+import com.xz.xzaiagent.tools.cache.ToolResultCache;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
 import org.springframework.ai.chat.client.advisor.QuestionAnswerAdvisor;
 import org.springframework.ai.chat.client.advisor.RetrievalAugmentationAdvisor;
 import org.springframework.ai.chat.client.advisor.api.Advisor;
@@ -45,19 +48,23 @@ public class LoveApp {
     /**
      * 初始化 AI 客户端 ChatClient
      */
-    public LoveApp(ChatModel dashscopeChatModel) {
+    public LoveApp(ChatModel dashscopeChatModel, Advisor chatMemoryAdvisor, Advisor conversationSummaryAdvisor,
+                   SemanticResponseCache semanticResponseCache, LlmScheduler llmScheduler) {
         // 初始化基于内存的对话记忆
         // ChatMemory chatMemory = new InMemoryChatMemory();
 
-        // 初始化基于文件的对话记忆
-        String fileDir = System.getProperty("user.dir") + "/tmp/chat-memory";  // 获取当前工作目录（Working Directory），返回的是 Java 程序启动时的目录：命令行运行程序时所在的目录/ IDE 运行程序时项目的根目录
-        ChatMemory chatMemory = new InFileChatMemory(fileDir);
+        // 基于文件的对话记忆（由 ChatMemoryConfig 按配置创建，默认目录为当前工作目录下的 tmp/chat-memory），按相关性注入历史，较早的对话以摘要形式注入
 
         chatClient = ChatClient.builder(dashscopeChatModel)
                 .defaultSystem(SYSTEM_PROMPT)
                 .defaultAdvisors(
-                        new MessageChatMemoryAdvisor(chatMemory),
-                        new MyLoggerAdvisor()
+                        chatMemoryAdvisor,
+                        // 近似问题直接返回缓存的回答（按 order 排在对话记忆、会话摘要、RAG 之后，命中时仍会记录本轮问答）
+                        new SemanticCacheAdvisor(semanticResponseCache, "loveApp"),
+                        conversationSummaryAdvisor,
+                        new MyLoggerAdvisor(),
+                        // 最内层：调用模型前申请并发名额，单次对话走优先通道
+                        new LlmSchedulerAdvisor(llmScheduler, LlmScheduler.Lane.INTERACTIVE)
                         // new ReReadingAdvisor()
                         // new SimpleLoggerAdvisor()
                 )
@@ -200,6 +207,9 @@ public class LoveApp {
     @Resource
     private ToolCallbackProvider toolCallbackProvider;
 
+    @Resource
+    private ToolResultCache toolResultCache;
+
     /**
      * AI 恋爱报告功能（支持 MCP）
      */
@@ -209,7 +219,8 @@ public class LoveApp {
                 .user(message)
                 .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
                         .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
-                .tools(toolCallbackProvider)  // MCP 的底层还是工具调用
+                // MCP 的底层还是工具调用，图片搜索等幂等工具经过共享的结果缓存
+                .tools(ToolCallbackProvider.from(toolResultCache.wrap(toolCallbackProvider.getToolCallbacks())))
                 .call()
                 .chatResponse();
         String content = chatResponse.getResult().getOutput().getText();
@@ -1,25 +1,33 @@
 package com.xz.xzaiagent.app;
 
 import com.xz.xzaiagent.advisor.MyLoggerAdvisor;
+import com.xz.xzaiagent.advisor.cache.SemanticCacheAdvisor;
+import com.xz.xzaiagent.advisor.cache.SemanticResponseCache;
 import com.xz.xzaiagent.agent.ActiveAgentRegistry;
-import com.xz.xzaiagent.chatmemory.InFileChatMemory;
+import com.xz.xzaiagent.agent.AgentTaskExecutor;
+import com.xz.xzaiagent.llm.LlmScheduler;
+import com.xz.xzaiagent.llm.LlmSchedulerAdvisor;
+import com.xz.xzaiagent.sse.SseOutbox;
+import com.xz.xzaiagent.sse.SseOutboxFactory;
+import com.xz.xzaiagent.utils.StreamCoalescer;
 import com.xz.xzaiagent.utils.TextUtil;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
-import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.client.advisor.api.Advisor;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.env.Environment;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.Disposable;
+import reactor.core.Exceptions;
 
 
 import java.io.IOException;
-import java.util.concurrent.CompletableFuture;
+import java.time.Duration;
 
 import static com.xz.xzaiagent.agent.prompt.LiteMind.SIMPLE_CHAT_SYSTEM_PROMPT_ZH;
 import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY;
@@ -37,22 +45,43 @@ public class SimpleChat {
     @Resource
     private ActiveAgentRegistry activeAgentRegistry;
 
+    @Resource
+    private AgentTaskExecutor agentTaskExecutor;
+
+    @Resource
+    private SseOutboxFactory sseOutboxFactory;
+
     @Value("${app.chat.memory.retrieveSize:20}")
     private int chatMemoryRetrieveSize;
 
     /**
-     * 初始化简单对话客户端
+     * 流式输出的合并窗口，为 0 时逐片段发送
      */
-    public SimpleChat(ChatModel dashscopeChatModel, Environment env) {
-        // 初始化基于文件的对话记忆（从配置读取）
-        String fileDir = env.getProperty("app.chat.memory.path", System.getProperty("user.dir") + "/tmp/chat-memory");
-        ChatMemory chatMemory = new InFileChatMemory(fileDir);
+    @Value("${app.chat.stream.coalesceWindow:40ms}")
+    private Duration streamCoalesceWindow;
 
+    /**
+     * 合并的片段累计达到该字节数时立即发送
+     */
+    @Value("${app.chat.stream.coalesceMaxBytes:512}")
+    private int streamCoalesceMaxBytes;
+
+    /**
+     * 初始化简单对话客户端
+     */
+    public SimpleChat(ChatModel dashscopeChatModel, Advisor chatMemoryAdvisor, Advisor conversationSummaryAdvisor,
+                      SemanticResponseCache semanticResponseCache, LlmScheduler llmScheduler) {
+        // 基于文件的对话记忆（由 ChatMemoryConfig 按配置创建，与 LoveApp 共享），按相关性注入历史，较早的对话以摘要形式注入
         chatClient = ChatClient.builder(dashscopeChatModel)
                 .defaultSystem(SIMPLE_CHAT_SYSTEM_PROMPT_ZH)
                 .defaultAdvisors(
-                        new MessageChatMemoryAdvisor(chatMemory),
-                        new MyLoggerAdvisor()
+                        chatMemoryAdvisor,
+                        // 近似问题直接返回缓存的回答（按 order 排在对话记忆、会话摘要、RAG 之后，命中时仍会记录本轮问答）
+                        new SemanticCacheAdvisor(semanticResponseCache, "simpleChat"),
+                        conversationSummaryAdvisor,
+                        new MyLoggerAdvisor(),
+                        // 最内层：调用模型前申请并发名额，单次对话走优先通道
+                        new LlmSchedulerAdvisor(llmScheduler, LlmScheduler.Lane.INTERACTIVE)
                 )
                 .build();
     }
@@ -66,11 +95,13 @@ public class SimpleChat {
      */
     public SseEmitter doChatByStream(String message, String chatId) {
         SseEmitter sseEmitter = new SseEmitter(180000L); // 3分钟超时
+        // 经有界发送队列写出，客户端读取过慢时不阻塞模型流的回调线程（按配置的策略等待或断开）
+        SseOutbox outbox = sseOutboxFactory.create(sseEmitter);
         // 可配置的检索大小，用于 advisor 检索历史消息
         int retrieveSize = this.chatMemoryRetrieveSize > 0 ? this.chatMemoryRetrieveSize : 20;
 
         // 使用异步处理，避免阻塞主线程
-        CompletableFuture.runAsync(() -> {
+        boolean accepted = agentTaskExecutor.submit("simpleChat", () -> {
             try {
                 // 获取流式响应
                 Flux<String> contentFlux = chatClient
@@ -80,26 +111,29 @@ public class SimpleChat {
                                 .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, retrieveSize))
                         .stream()
                         .content();
+                // 合并相邻的小片段后再规范化与发送，减少每个响应的 send / flush 次数
+                contentFlux = StreamCoalescer.coalesce(contentFlux, streamCoalesceWindow, streamCoalesceMaxBytes);
 
                 // 订阅流式数据并发送给客户端，保存Disposable以便外部可中止
                 Disposable disposable = contentFlux.subscribe(
                         chunk -> {
                             try {
                                 if (chunk != null && !chunk.isEmpty()) {
-                                    sseEmitter.send(TextUtil.normalizeMessage(chunk));
+                                    outbox.send(TextUtil.normalizeMessage(chunk));
                                 }
                             } catch (IOException e) {
-                                log.error("发送SSE消息失败", e);
-                                sseEmitter.completeWithError(e);
+                                // 连接已断开（或客户端过慢被断开）：抛出异常以取消模型流，不再继续生成
+                                log.warn("发送SSE消息失败：{}", e.getMessage());
+                                throw Exceptions.propagate(e);
                             }
                         },
                         error -> {
                             log.error("流式响应出错", error);
                             try {
-                                sseEmitter.send("抱歉，处理您的请求时遇到错误，请稍后重试。");
-                                sseEmitter.complete();
+                                outbox.send("抱歉，处理您的请求时遇到错误，请稍后重试。");
+                                outbox.complete();
                             } catch (IOException e) {
-                                sseEmitter.completeWithError(e);
+                                outbox.completeWithError(e);
                             } finally {
                                 // 清理注册: provided chatId
                                 if (chatId != null) activeAgentRegistry.unregister(chatId);
@@ -108,10 +142,10 @@ public class SimpleChat {
                         () -> {
                             // 流式响应完成
                             try {
-                                sseEmitter.send("[DONE]");
-                                sseEmitter.complete();
+                                outbox.send("[DONE]");
+                                outbox.complete();
                             } catch (IOException e) {
-                                sseEmitter.completeWithError(e);
+                                outbox.completeWithError(e);
                             } finally {
                                 if (chatId != null) activeAgentRegistry.unregister(chatId);
                             }
@@ -125,14 +159,26 @@ public class SimpleChat {
             } catch (Exception e) {
                 log.error("处理对话请求失败", e);
                 try {
-                    sseEmitter.send("处理请求时遇到错误，请稍后重试。");
-                    sseEmitter.complete();
+                    outbox.send("处理请求时遇到错误，请稍后重试。");
+                    outbox.complete();
                 } catch (IOException ex) {
-                    sseEmitter.completeWithError(ex);
+                    outbox.completeWithError(ex);
                 }
             }
         });
 
+        // 准入队列已满，立即回复“服务繁忙”
+        if (!accepted) {
+            try {
+                outbox.send(AgentTaskExecutor.BUSY_MESSAGE);
+                outbox.complete();
+            } catch (IOException e) {
+                outbox.completeWithError(e);
+            } finally {
+                if (chatId != null) activeAgentRegistry.unregister(chatId);
+            }
+        }
+
         // 设置超时回调
         sseEmitter.onTimeout(() -> {
             log.warn("SSE连接超时");
@@ -144,4 +190,33 @@ public class SimpleChat {
 
         return sseEmitter;
     }
-}
\ No newline at end of file
+
+    /**
+     * 简单对话 - 响应式流式输出：与 doChatByStream 推送相同的内容，返回 Flux 由框架写出
+     * <p>
+     * 全程非阻塞，不占用执行器线程与 SseEmitter；客户端断开时取消订阅，模型流随之取消，写出速度受客户端背压控制
+     *
+     * @param message 用户消息
+     * @param chatId  对话ID（用于多轮对话记忆）
+     * @return SSE 事件流
+     */
+    public Flux<ServerSentEvent<String>> doChatByFlux(String message, String chatId) {
+        int retrieveSize = this.chatMemoryRetrieveSize > 0 ? this.chatMemoryRetrieveSize : 20;
+        Flux<String> contentFlux = chatClient
+                .prompt()
+                .user(message)
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
+                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, retrieveSize))
+                .stream()
+                .content();
+        return StreamCoalescer.coalesce(contentFlux, streamCoalesceWindow, streamCoalesceMaxBytes)
+                .map(TextUtil::normalizeMessage)
+                .filter(chunk -> !chunk.isEmpty())
+                .concatWith(Mono.just("[DONE]"))
+                .onErrorResume(error -> {
+                    log.error("流式响应出错", error);
+                    return Mono.just("抱歉，处理您的请求时遇到错误，请稍后重试。");
+                })
+                .map(chunk -> ServerSentEvent.builder(chunk).build());
+    }
+}
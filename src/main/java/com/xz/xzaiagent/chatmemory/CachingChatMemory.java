@@ -0,0 +1,379 @@
+package com.xz.xzaiagent.chatmemory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 写回式对话记忆缓存：在内存中保留最近活跃会话的消息（已反序列化），读写都先走内存
+ * <p>
+ * - get：命中时直接从内存返回最后 N 条，未命中时从底层 ChatMemory 读取最近 retainMessages 条后放入缓存；
+ * - add：只追加到内存并标记为脏，由后台每隔 flushInterval 批量写回底层 ChatMemory；
+ * - 会话数超过 maxConversations 时淘汰最久未访问的会话，淘汰前先写回；关闭时写回全部脏数据。
+ * 每个会话最多缓存 retainMessages 条，请求更多时先写回再读底层存储。
+ * 被淘汰的会话只有在全部待写消息写回成功后才会失效（retired），写回失败时留在 evicting 中由后台继续重试
+ */
+@Slf4j
+public class CachingChatMemory implements ChatMemory, ConversationExpiryListener, Closeable {
+
+    private final ChatMemory delegate;
+
+    private final int maxConversations;
+
+    private final int retainMessages;
+
+    /**
+     * 按访问顺序排列的会话缓存，访问需持有 cache 的锁
+     */
+    private final LinkedHashMap<String, CachedConversation> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 已被淘汰但还在写回中（或写回失败等待重试）的会话，写回完成前再次访问时直接复用，避免读到旧数据
+     */
+    private final Map<String, CachedConversation> evicting = new ConcurrentHashMap<>();
+
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService flusher;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Timer flushTimer;
+
+    /**
+     * 单个会话的缓存，访问需持有 lock；持锁期间会读写底层存储，使用 ReentrantLock 避免虚拟线程被钉住
+     */
+    private static final class CachedConversation {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * 最近的消息（最多 retainMessages 条）
+         */
+        final List<Message> messages = new ArrayList<>();
+
+        /**
+         * 尚未写回底层存储的消息
+         */
+        List<Message> pending = new ArrayList<>();
+
+        /**
+         * 是否已从底层存储加载
+         */
+        boolean loaded;
+
+        /**
+         * messages 是否为该会话的完整历史
+         */
+        boolean complete;
+
+        /**
+         * 已淘汰且全部写回，不再属于缓存；取得锁后发现已失效需重新获取会话缓存
+         */
+        boolean retired;
+    }
+
+    /**
+     * @param delegate         底层 ChatMemory
+     * @param maxConversations 最多缓存的会话数
+     * @param retainMessages   每个会话最多缓存的消息数
+     * @param flushInterval    后台写回间隔
+     * @param meterRegistry    指标注册表
+     */
+    public CachingChatMemory(ChatMemory delegate, int maxConversations, int retainMessages,
+                             Duration flushInterval, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.maxConversations = Math.max(1, maxConversations);
+        this.retainMessages = Math.max(1, retainMessages);
+
+        this.hits = Counter.builder("chat.memory.cache.requests")
+                .description("对话记忆缓存读取次数")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("chat.memory.cache.requests")
+                .description("对话记忆缓存读取次数")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("chat.memory.cache.flush")
+                .description("单个会话写回底层存储的耗时")
+                .register(meterRegistry);
+        Gauge.builder("chat.memory.cache.size", this, CachingChatMemory::size)
+                .description("缓存中的会话数")
+                .register(meterRegistry);
+        Gauge.builder("chat.memory.cache.dirty", dirty, Set::size)
+                .description("尚未写回的会话数")
+                .register(meterRegistry);
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("chat-memory-flusher").daemon(true).factory());
+        long intervalMillis = Math.max(1, flushInterval.toMillis());
+        this.flusher.scheduleWithFixedDelay(this::flushDirty, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        if (messages.isEmpty())
+            return;
+        CachedConversation entry = lockEntry(conversationId, true);
+        try {
+            load(conversationId, entry);
+            entry.messages.addAll(messages);
+            trim(entry);
+            entry.pending.addAll(messages);
+            dirty.add(conversationId);
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> get(String conversationId, int lastN) {
+        CachedConversation entry = lockEntry(conversationId, true);
+        try {
+            (entry.loaded ? hits : misses).increment();
+            load(conversationId, entry);
+            if (lastN > entry.messages.size() && !entry.complete) {
+                // 请求超出缓存范围：先写回，再直接读底层存储
+                flush(conversationId, entry);
+                return delegate.get(conversationId, lastN);
+            }
+            List<Message> messages = entry.messages;
+            return List.copyOf(messages.subList(Math.max(0, messages.size() - lastN), messages.size()));
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        CachedConversation entry = lockEntry(conversationId, false);
+        if (entry != null) {
+            try {
+                entry.messages.clear();
+                entry.pending = new ArrayList<>();
+                entry.complete = true;
+                entry.loaded = true;
+                dirty.remove(conversationId);
+                delegate.clear(conversationId);
+                retireIfEvicted(conversationId, entry);
+            } finally {
+                entry.lock.unlock();
+            }
+            return;
+        }
+        delegate.clear(conversationId);
+    }
+
+    /**
+     * 底层会话已过期删除：先写回尚未写回的消息（过期判断与写入并发时，新消息落入新的会话文件），再移除缓存，
+     * 之后的访问重新从底层加载；写回失败时缓存中只保留这些尚未写回的消息
+     */
+    @Override
+    public void onConversationExpired(String conversationId) {
+        CachedConversation entry;
+        synchronized (cache) {
+            entry = cache.get(conversationId);
+            if (entry == null)
+                entry = evicting.get(conversationId);
+        }
+        if (entry == null)
+            return;
+        entry.lock.lock();
+        try {
+            if (entry.retired)
+                return;
+            flush(conversationId, entry);
+            if (entry.pending.isEmpty()) {
+                synchronized (cache) {
+                    cache.remove(conversationId, entry);
+                    evicting.remove(conversationId, entry);
+                    entry.retired = true;
+                }
+            } else {
+                entry.messages.clear();
+                entry.messages.addAll(entry.pending);
+                entry.complete = true;
+            }
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+
+    /**
+     * 写回全部脏数据并关闭底层存储
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushDirty();
+        if (delegate instanceof Closeable closeable)
+            closeable.close();
+    }
+
+    private int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * 获取会话缓存并加锁；取得锁时会话已失效（被并发淘汰并写回）则重新获取，保证写入的消息一定属于仍在缓存中的会话
+     */
+    private CachedConversation lockEntry(String conversationId, boolean create) {
+        while (true) {
+            CachedConversation entry = entry(conversationId, create);
+            if (entry == null)
+                return null;
+            entry.lock.lock();
+            if (!entry.retired)
+                return entry;
+            entry.lock.unlock();
+        }
+    }
+
+    /**
+     * 获取会话缓存，create 为 true 时不存在则创建（尚未加载）；超出容量时淘汰最久未访问的会话
+     */
+    private CachedConversation entry(String conversationId, boolean create) {
+        List<Map.Entry<String, CachedConversation>> evicted = new ArrayList<>();
+        CachedConversation entry;
+        synchronized (cache) {
+            entry = cache.get(conversationId);
+            if (entry != null)
+                return entry;
+            entry = evicting.get(conversationId);
+            if (entry == null && !create)
+                return null;
+            if (entry == null)
+                entry = new CachedConversation();
+            cache.put(conversationId, entry);
+            Iterator<Map.Entry<String, CachedConversation>> iterator = cache.entrySet().iterator();
+            while (cache.size() > maxConversations && iterator.hasNext()) {
+                Map.Entry<String, CachedConversation> eldest = iterator.next();
+                iterator.remove();
+                evicting.put(eldest.getKey(), eldest.getValue());
+                evicted.add(Map.entry(eldest.getKey(), eldest.getValue()));
+            }
+        }
+        // 在 cache 锁外写回被淘汰的会话
+        for (Map.Entry<String, CachedConversation> eldest : evicted) {
+            CachedConversation evictedEntry = eldest.getValue();
+            evictedEntry.lock.lock();
+            try {
+                flush(eldest.getKey(), evictedEntry);
+                retireIfEvicted(eldest.getKey(), evictedEntry);
+            } finally {
+                evictedEntry.lock.unlock();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * 被淘汰的会话全部写回后移出 evicting，需持有 entry 的锁；期间又被访问放回缓存的会话继续有效，
+     * 写回失败（仍有待写消息）时留在 evicting 中等待后台重试
+     */
+    private void retireIfEvicted(String conversationId, CachedConversation entry) {
+        if (!entry.pending.isEmpty())
+            return;
+        synchronized (cache) {
+            if (evicting.remove(conversationId, entry) && cache.get(conversationId) != entry)
+                entry.retired = true;
+        }
+    }
+
+    /**
+     * 首次访问时从底层存储加载最近 retainMessages 条，需持有 entry 的锁
+     */
+    private void load(String conversationId, CachedConversation entry) {
+        if (entry.loaded)
+            return;
+        List<Message> messages = delegate.get(conversationId, retainMessages);
+        entry.messages.addAll(messages);
+        entry.complete = messages.size() < retainMessages;
+        entry.loaded = true;
+    }
+
+    private void trim(CachedConversation entry) {
+        int overflow = entry.messages.size() - retainMessages;
+        if (overflow > 0) {
+            entry.messages.subList(0, overflow).clear();
+            entry.complete = false;
+        }
+    }
+
+    /**
+     * 后台写回全部脏会话
+     */
+    private void flushDirty() {
+        for (String conversationId : dirty) {
+            CachedConversation entry;
+            synchronized (cache) {
+                entry = cache.get(conversationId);
+                if (entry == null)
+                    entry = evicting.get(conversationId);
+            }
+            // 找不到会话缓存时不移除脏标记：会话失效前必定已写回并清除标记，留给下一轮重新查找
+            if (entry == null)
+                continue;
+            entry.lock.lock();
+            try {
+                if (entry.retired)
+                    continue;
+                flush(conversationId, entry);
+                retireIfEvicted(conversationId, entry);
+            } finally {
+                entry.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 把会话的待写消息写回底层存储，需持有 entry 的锁；失败时保留待写消息，等待下次重试
+     */
+    private void flush(String conversationId, CachedConversation entry) {
+        if (entry.pending.isEmpty()) {
+            dirty.remove(conversationId);
+            return;
+        }
+        List<Message> batch = entry.pending;
+        entry.pending = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            delegate.add(conversationId, batch);
+            dirty.remove(conversationId);
+        } catch (Exception e) {
+            batch.addAll(entry.pending);
+            entry.pending = batch;
+            log.error("会话 {} 写回失败（{} 条消息），稍后重试", conversationId, batch.size(), e);
+        } finally {
+            flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.xz.xzaiagent.chatmemory;
+
+import cn.hutool.core.util.StrUtil;
+import com.xz.xzaiagent.advisor.ConversationSummaryAdvisor;
+import com.xz.xzaiagent.advisor.RelevantMemoryAdvisor;
+import com.xz.xzaiagent.llm.LlmScheduler;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
+import org.springframework.ai.chat.client.advisor.api.Advisor;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对话记忆配置（SimpleChat、LoveApp 共享同一个 ChatMemory，避免多个实例同时读写同一目录）
+ * <p>
+ * 底层存储按 app.chat.memory.type 选择，统一注册为名为 chatMemoryStore 的 Bean
+ */
+@Slf4j
+@Configuration
+public class ChatMemoryConfig {
+
+    /**
+     * SimpleChat、LoveApp 注入的 ChatMemory：按配置在底层存储前加一层内存写回缓存
+     */
+    @Bean(destroyMethod = "close")
+    @Primary
+    public ChatMemory chatMemory(@Qualifier("chatMemoryStore") ChatMemory chatMemoryStore, ChatMemoryProperties properties,
+                                 MeterRegistry meterRegistry) {
+        ChatMemoryProperties.Cache cache = properties.getCache();
+        if (!cache.isEnabled())
+            return chatMemoryStore;
+        return new CachingChatMemory(chatMemoryStore, cache.getMaxConversations(), cache.getRetainMessages(),
+                cache.getFlushInterval(), meterRegistry);
+    }
+
+    /**
+     * 对话记忆的相关性索引（按相关性注入历史时使用）
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "app.chat.memory.relevance", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public ConversationMemoryIndex conversationMemoryIndex(ChatMemory chatMemory, EmbeddingModel dashscopeEmbeddingModel,
+                                                           ChatMemoryProperties properties) {
+        ChatMemoryProperties.Relevance relevance = properties.getRelevance();
+        return new ConversationMemoryIndex(chatMemory, dashscopeEmbeddingModel,
+                relevance.getTopK(), relevance.getRecentTurns(), relevance.getMaxTokens(), relevance.getMinScore(),
+                relevance.getMaxIndexedMessages(), relevance.getMaxConversations(), relevance.getEmbeddingCacheSize());
+    }
+
+    /**
+     * SimpleChat、LoveApp 使用的对话记忆 Advisor：按配置选择按相关性注入（RelevantMemoryAdvisor）或按条数注入最近的历史
+     */
+    @Bean
+    public Advisor chatMemoryAdvisor(ChatMemory chatMemory, ObjectProvider<ConversationMemoryIndex> conversationMemoryIndex) {
+        ConversationMemoryIndex memoryIndex = conversationMemoryIndex.getIfAvailable();
+        if (memoryIndex == null)
+            return new MessageChatMemoryAdvisor(chatMemory);
+        return new RelevantMemoryAdvisor(chatMemory, memoryIndex);
+    }
+
+    /**
+     * 会话滚动摘要（摘要保存在底层存储中，与会话数据放在一起）
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "app.chat.memory.summary", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public ConversationSummarizer conversationSummarizer(ChatMemory chatMemory, @Qualifier("chatMemoryStore") ChatMemory chatMemoryStore,
+                                                         ChatModel dashscopeChatModel, LlmScheduler llmScheduler,
+                                                         ChatMemoryProperties properties) {
+        if (!(chatMemoryStore instanceof ConversationSummaryStore summaryStore))
+            throw new IllegalStateException("对话记忆存储不支持保存摘要：" + chatMemoryStore.getClass().getName());
+        ChatMemoryProperties.Summary summary = properties.getSummary();
+        return new ConversationSummarizer(chatMemory, summaryStore, dashscopeChatModel, llmScheduler, summaryWindow(properties),
+                summary.getMinNewMessages(), summary.getMaxBatchMessages(), summary.getMaxChars(), summary.getCacheSize());
+    }
+
+    /**
+     * SimpleChat、LoveApp 使用的会话摘要 Advisor，未启用摘要时直接放行
+     */
+    @Bean
+    public Advisor conversationSummaryAdvisor(ObjectProvider<ConversationSummarizer> conversationSummarizer, ChatMemoryProperties properties) {
+        return new ConversationSummaryAdvisor(conversationSummarizer.getIfAvailable(), properties.getRelevance().isEnabled());
+    }
+
+    /**
+     * 摘要窗口与对话记忆 Advisor 始终注入的原始消息保持一致，窗口之外的消息全部进入摘要：
+     * 按相关性注入时始终注入的只有最近 recentTurns 轮（每轮一问一答两条消息），更早的相关轮次只是摘要之外的补充；
+     * 按条数注入时为 summary.window（与 retrieveSize 一致）
+     */
+    private static int summaryWindow(ChatMemoryProperties properties) {
+        ChatMemoryProperties.Relevance relevance = properties.getRelevance();
+        return relevance.isEnabled() ? relevance.getRecentTurns() * 2 : properties.getSummary().getWindow();
+    }
+
+    private static MessageCodec messageCodec(ChatMemoryProperties properties) {
+        ChatMemoryProperties.Codec codec = properties.getCodec();
+        return new MessageCodec(codec.isCompression(), codec.getCompressThreshold());
+    }
+
+    /**
+     * 文件存储（默认）
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnProperty(prefix = "app.chat.memory", name = "type", havingValue = "file", matchIfMissing = true)
+    static class FileStoreConfig {
+
+        @Bean(name = "chatMemoryStore", destroyMethod = "close")
+        public InFileChatMemory inFileChatMemory(ChatMemoryProperties properties) {
+            log.info("对话记忆目录：{}，存储模式：{}，持久化级别：{}", properties.getPath(), properties.getStorage(), properties.getDurability());
+            return new InFileChatMemory(properties.getPath(), properties.getStorage(),
+                    properties.getLog().getCompactThreshold(), properties.getLog().getCompactInterval(),
+                    messageCodec(properties), properties.getDurability());
+        }
+
+        @Bean(destroyMethod = "close")
+        @ConditionalOnProperty(prefix = "app.chat.memory.janitor", name = "enabled", havingValue = "true", matchIfMissing = true)
+        public ChatMemoryJanitor chatMemoryJanitor(InFileChatMemory inFileChatMemory, ChatMemory chatMemory,
+                                                   ObjectProvider<ConversationSummarizer> conversationSummarizer,
+                                                   ObjectProvider<ConversationMemoryIndex> conversationMemoryIndex,
+                                                   ChatMemoryProperties properties, MeterRegistry meterRegistry) {
+            // 过期删除文件后，内存中的写回缓存、摘要缓存、相关性索引一并失效
+            List<ConversationExpiryListener> expiryListeners = new ArrayList<>();
+            if (chatMemory instanceof ConversationExpiryListener cachingChatMemory)
+                expiryListeners.add(cachingChatMemory);
+            conversationSummarizer.ifAvailable(expiryListeners::add);
+            conversationMemoryIndex.ifAvailable(expiryListeners::add);
+            ChatMemoryProperties.Janitor janitor = properties.getJanitor();
+            return new ChatMemoryJanitor(inFileChatMemory, janitor.getInterval(), janitor.getTtl(),
+                    janitor.getTempFileRetention(), janitor.getCorruptFileRetention(), expiryListeners, meterRegistry);
+        }
+    }
+
+    /**
+     * 嵌入式数据库存储：数据源只供对话记忆使用，不注册为 Bean，避免替换应用的主数据源（PGVector 使用的 PostgreSQL）
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnProperty(prefix = "app.chat.memory", name = "type", havingValue = "jdbc")
+    static class JdbcStoreConfig {
+
+        @Bean(name = "chatMemoryStore", destroyMethod = "close")
+        public JdbcChatMemory jdbcChatMemory(ChatMemoryProperties properties) throws IOException {
+            ChatMemoryProperties.Jdbc jdbc = properties.getJdbc();
+            HikariDataSource dataSource = new HikariDataSource();
+            // url 留空时 yml 绑定为空字符串而不是 null；关闭 H2 的退出钩子：由 Spring 在写回缓存之后关闭数据源
+            dataSource.setJdbcUrl(StrUtil.isNotBlank(jdbc.getUrl()) ? jdbc.getUrl()
+                    : "jdbc:h2:file:" + Path.of(properties.getPath(), "chat-memory").toAbsolutePath() + ";DB_CLOSE_ON_EXIT=FALSE");
+            dataSource.setUsername(jdbc.getUsername());
+            dataSource.setPassword(jdbc.getPassword());
+            dataSource.setMaximumPoolSize(jdbc.getMaxPoolSize());
+            dataSource.setPoolName("chat-memory");
+            log.info("对话记忆数据库：{}", dataSource.getJdbcUrl());
+
+            JdbcChatMemory chatMemory = new JdbcChatMemory(dataSource, messageCodec(properties), jdbc.getBatchSize());
+            if (jdbc.isImportFiles())
+                chatMemory.importFrom(Path.of(properties.getPath()));
+            return chatMemory;
+        }
+    }
+}
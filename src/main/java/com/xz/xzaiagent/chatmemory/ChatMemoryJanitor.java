@@ -0,0 +1,250 @@
+package com.xz.xzaiagent.chatmemory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对话记忆目录清理任务，在独立的线程上定期执行：
+ * <p>
+ * 1. 首次执行时把旧的平铺布局整体迁移到分片目录；
+ * 2. 删除超过 ttl 未活跃的会话（ttl 为 0 时不过期），并通知 ConversationExpiryListener 失效内存中的缓存；
+ * 3. 删除崩溃残留的 .tmp 临时文件与过旧的 .corrupt.* 备份；
+ * 4. 统计磁盘占用与各类文件数量，作为指标暴露
+ */
+@Slf4j
+public class ChatMemoryJanitor implements Closeable {
+
+    private final InFileChatMemory chatMemory;
+
+    private final Duration ttl;
+
+    private final Duration tempFileRetention;
+
+    private final Duration corruptFileRetention;
+
+    /**
+     * 会话过期后需要失效内存状态的组件，按写回缓存、摘要、索引的顺序通知
+     */
+    private final List<ConversationExpiryListener> expiryListeners;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    private final AtomicLong conversations = new AtomicLong();
+
+    private final Map<FileType, AtomicLong> fileCounts = new HashMap<>();
+
+    private final Counter expired;
+
+    private final Timer sweepTimer;
+
+    private final MeterRegistry meterRegistry;
+
+    private volatile boolean migrated;
+
+    /**
+     * 目录中的文件类型，用作指标标签
+     */
+    enum FileType {
+        SNAPSHOT, LOG, INDEX, SUMMARY, TEMP, CORRUPT, OTHER;
+
+        static FileType of(String fileName) {
+            if (fileName.endsWith(".tmp"))
+                return TEMP;
+            if (fileName.contains(".corrupt."))
+                return CORRUPT;
+            if (fileName.endsWith(".kryo"))
+                return SNAPSHOT;
+            if (fileName.endsWith(".log"))
+                return LOG;
+            if (fileName.endsWith(".idx"))
+                return INDEX;
+            if (fileName.endsWith(".summary"))
+                return SUMMARY;
+            return OTHER;
+        }
+
+        String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * @param chatMemory           要清理的文件对话记忆
+     * @param interval             执行间隔
+     * @param ttl                  会话过期时间，为 0 时不过期
+     * @param tempFileRetention    临时文件保留时间（超过后视为崩溃残留）
+     * @param corruptFileRetention 损坏文件备份的保留时间
+     * @param expiryListeners      会话过期后需要失效内存状态的组件
+     * @param meterRegistry        指标注册表
+     */
+    public ChatMemoryJanitor(InFileChatMemory chatMemory, Duration interval, Duration ttl,
+                             Duration tempFileRetention, Duration corruptFileRetention,
+                             List<ConversationExpiryListener> expiryListeners, MeterRegistry meterRegistry) {
+        this.chatMemory = chatMemory;
+        this.expiryListeners = List.copyOf(expiryListeners);
+        this.ttl = ttl;
+        this.tempFileRetention = tempFileRetention;
+        this.corruptFileRetention = corruptFileRetention;
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder("chat.memory.disk.bytes", diskBytes, AtomicLong::get)
+                .description("对话记忆目录占用的磁盘空间（字节）")
+                .register(meterRegistry);
+        Gauge.builder("chat.memory.conversations", conversations, AtomicLong::get)
+                .description("磁盘上的会话数")
+                .register(meterRegistry);
+        for (FileType type : FileType.values()) {
+            AtomicLong count = new AtomicLong();
+            fileCounts.put(type, count);
+            Gauge.builder("chat.memory.files", count, AtomicLong::get)
+                    .description("对话记忆目录中的文件数")
+                    .tag("type", type.tag())
+                    .register(meterRegistry);
+        }
+        this.expired = Counter.builder("chat.memory.janitor.expired")
+                .description("因长期未活跃被删除的会话数")
+                .register(meterRegistry);
+        this.sweepTimer = Timer.builder("chat.memory.janitor.sweep")
+                .description("单次清理耗时")
+                .register(meterRegistry);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("chat-memory-janitor").daemon(true).factory());
+        long intervalMillis = Math.max(1, interval.toMillis());
+        this.scheduler.scheduleWithFixedDelay(this::run, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 会话文件已删除，通知内存中的各层一并失效，避免继续返回已删除的历史
+     */
+    private void notifyExpired(String conversationId) {
+        for (ConversationExpiryListener listener : expiryListeners) {
+            try {
+                listener.onConversationExpired(conversationId);
+            } catch (Exception e) {
+                log.warn("会话 {} 过期后失效内存状态失败：{}", conversationId, listener.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            if (!migrated) {
+                chatMemory.migrateFlatLayout();
+                migrated = true;
+            }
+            sweepTimer.record(this::sweep);
+        } catch (Exception e) {
+            log.error("对话记忆目录清理失败", e);
+        }
+    }
+
+    /**
+     * 遍历整个目录：清理残留文件、过期会话，并更新统计
+     */
+    private void sweep() {
+        Instant now = Instant.now();
+        Instant expireBefore = ttl.isZero() || ttl.isNegative() ? null : now.minus(ttl);
+        Instant tempBefore = now.minus(tempFileRetention);
+        Instant corruptBefore = now.minus(corruptFileRetention);
+
+        Map<FileType, Long> counts = new HashMap<>();
+        long[] bytes = {0};
+        long[] conversationCount = {0};
+        int[] expiredCount = {0};
+        int[] deletedCount = {0};
+        try {
+            Files.walkFileTree(chatMemory.baseDir(), new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String fileName = file.getFileName().toString();
+                    FileType type = FileType.of(fileName);
+                    Instant modified = attrs.lastModifiedTime().toInstant();
+
+                    if ((type == FileType.TEMP && modified.isBefore(tempBefore))
+                            || (type == FileType.CORRUPT && modified.isBefore(corruptBefore))) {
+                        if (delete(file, type)) {
+                            deletedCount[0]++;
+                            return FileVisitResult.CONTINUE;
+                        }
+                    }
+                    // 以日志或快照为准判断会话是否过期（索引、摘要随日志一起删除）
+                    if (expireBefore != null && (type == FileType.LOG || type == FileType.SNAPSHOT)
+                            && modified.isBefore(expireBefore)) {
+                        String conversationId = InFileChatMemory.conversationIdOf(fileName);
+                        if (chatMemory.expireIfIdle(conversationId, expireBefore)) {
+                            notifyExpired(conversationId);
+                            expiredCount[0]++;
+                            return FileVisitResult.CONTINUE;
+                        }
+                    }
+                    if (type == FileType.LOG || type == FileType.SNAPSHOT)
+                        conversationCount[0]++;
+                    counts.merge(type, 1L, Long::sum);
+                    bytes[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // 遍历期间被删除或移动的文件直接跳过
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.error("遍历对话记忆目录失败：{}", chatMemory.baseDir(), e);
+            return;
+        }
+
+        diskBytes.set(bytes[0]);
+        conversations.set(conversationCount[0]);
+        fileCounts.forEach((type, count) -> count.set(counts.getOrDefault(type, 0L)));
+        expired.increment(expiredCount[0]);
+        if (expiredCount[0] > 0 || deletedCount[0] > 0)
+            log.info("对话记忆目录清理完成：删除过期会话 {} 个、残留文件 {} 个，当前 {} 个会话、{} 字节",
+                    expiredCount[0], deletedCount[0], conversationCount[0], bytes[0]);
+    }
+
+    private boolean delete(Path file, FileType type) {
+        try {
+            boolean deleted = Files.deleteIfExists(file);
+            if (deleted)
+                Counter.builder("chat.memory.janitor.deleted")
+                        .description("清理的残留文件数")
+                        .tag("type", type.tag())
+                        .register(meterRegistry)
+                        .increment();
+            return deleted;
+        } catch (IOException e) {
+            log.warn("删除残留文件失败：{}", file, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
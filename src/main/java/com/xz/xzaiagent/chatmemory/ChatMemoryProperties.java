@@ -0,0 +1,274 @@
+package com.xz.xzaiagent.chatmemory;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 对话记忆配置（app.chat.memory）
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "app.chat.memory")
+public class ChatMemoryProperties {
+
+    /**
+     * 存储类型
+     */
+    public enum Type {
+
+        /**
+         * 每个会话一组文件（InFileChatMemory）
+         */
+        FILE,
+
+        /**
+         * 嵌入式数据库（JdbcChatMemory）
+         */
+        JDBC
+    }
+
+    /**
+     * 存储类型：file 每个会话一组文件，jdbc 嵌入式数据库
+     */
+    private Type type = Type.FILE;
+
+    /**
+     * 会话文件存放目录（jdbc 模式下为默认的数据库目录与导入来源）
+     */
+    private String path = System.getProperty("user.dir") + "/tmp/chat-memory";
+
+    /**
+     * 存储模式：snapshot 每次整体重写，log 追加写日志
+     */
+    private InFileChatMemory.StorageMode storage = InFileChatMemory.StorageMode.LOG;
+
+    /**
+     * 写入的持久化级别：async 提交后立即返回；batched-fsync 等待所在批次刷盘；per-write-fsync 等待单次写入刷盘
+     */
+    private InFileChatMemory.Durability durability = InFileChatMemory.Durability.ASYNC;
+
+    /**
+     * LOG 模式配置
+     */
+    private Log log = new Log();
+
+    /**
+     * 会话文件编码配置
+     */
+    private Codec codec = new Codec();
+
+    /**
+     * 嵌入式数据库配置
+     */
+    private Jdbc jdbc = new Jdbc();
+
+    /**
+     * 内存写回缓存配置
+     */
+    private Cache cache = new Cache();
+
+    /**
+     * 目录清理配置
+     */
+    private Janitor janitor = new Janitor();
+
+    /**
+     * 按相关性注入历史的配置
+     */
+    private Relevance relevance = new Relevance();
+
+    /**
+     * 会话滚动摘要配置
+     */
+    private Summary summary = new Summary();
+
+    @Data
+    public static class Log {
+
+        /**
+         * 会话日志自上次合并后新增的记录数超过该值时由后台合并为定长的块
+         */
+        private int compactThreshold = 64;
+
+        /**
+         * 后台压缩的执行间隔
+         */
+        private Duration compactInterval = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Codec {
+
+        /**
+         * 是否压缩会话文件内容（快照与日志记录）
+         */
+        private boolean compression = true;
+
+        /**
+         * 编码后超过该字节数才压缩：单轮对话的日志记录通常低于该值，压缩收益小于开销，只有合并后的块与快照会被压缩
+         */
+        private int compressThreshold = 1024;
+    }
+
+    @Data
+    public static class Jdbc {
+
+        /**
+         * JDBC 连接地址，为空时在 path 目录下创建 H2 文件库
+         */
+        private String url;
+
+        private String username = "sa";
+
+        private String password = "";
+
+        /**
+         * 连接池最大连接数
+         */
+        private int maxPoolSize = 4;
+
+        /**
+         * 批量插入时每批的行数
+         */
+        private int batchSize = 500;
+
+        /**
+         * 启动时从 path 目录导入文件存储的会话（数据库中已存在的会话跳过）
+         */
+        private boolean importFiles = true;
+    }
+
+    @Data
+    public static class Cache {
+
+        /**
+         * 是否在文件存储前启用内存写回缓存
+         */
+        private boolean enabled = true;
+
+        /**
+         * 最多缓存的会话数，超出后淘汰最久未访问的会话
+         */
+        private int maxConversations = 1000;
+
+        /**
+         * 每个会话最多缓存的消息数
+         */
+        private int retainMessages = 200;
+
+        /**
+         * 脏数据写回间隔
+         */
+        private Duration flushInterval = Duration.ofSeconds(1);
+    }
+
+    @Data
+    public static class Janitor {
+
+        /**
+         * 是否启用后台目录清理
+         */
+        private boolean enabled = true;
+
+        /**
+         * 清理执行间隔（同时也是磁盘占用指标的刷新间隔）
+         */
+        private Duration interval = Duration.ofMinutes(10);
+
+        /**
+         * 会话超过该时间未活跃则删除，为 0 时不过期
+         */
+        private Duration ttl = Duration.ofDays(30);
+
+        /**
+         * .tmp 临时文件超过该时间视为崩溃残留并删除
+         */
+        private Duration tempFileRetention = Duration.ofHours(1);
+
+        /**
+         * .corrupt.* 损坏文件备份的保留时间
+         */
+        private Duration corruptFileRetention = Duration.ofDays(7);
+    }
+
+    @Data
+    public static class Relevance {
+
+        /**
+         * 是否按相关性注入历史，关闭时按条数注入最近的 retrieveSize 条
+         */
+        private boolean enabled = true;
+
+        /**
+         * 最多注入的相关历史轮数（不含最近的轮次）
+         */
+        private int topK = 4;
+
+        /**
+         * 始终注入的最近轮数
+         */
+        private int recentTurns = 2;
+
+        /**
+         * 注入历史的 token 预算
+         */
+        private int maxTokens = 2000;
+
+        /**
+         * 向量相似度低于该值的历史轮次不注入
+         */
+        private double minScore = 0.35;
+
+        /**
+         * 每个会话最多索引的消息数
+         */
+        private int maxIndexedMessages = 400;
+
+        /**
+         * 最多索引的会话数，超出后淘汰最久未访问的会话
+         */
+        private int maxConversations = 1000;
+
+        /**
+         * 向量缓存条数（按轮次文本缓存）
+         */
+        private int embeddingCacheSize = 5000;
+    }
+
+    @Data
+    public static class Summary {
+
+        /**
+         * 是否为较早的对话生成滚动摘要并注入系统提示词
+         */
+        private boolean enabled = true;
+
+        /**
+         * 不概括的最近消息数，与 retrieveSize 保持一致；按相关性注入（relevance.enabled）时不使用，窗口为 relevance.recentTurns 轮
+         */
+        private int window = 20;
+
+        /**
+         * 新移出窗口的消息攒够该条数才刷新摘要
+         */
+        private int minNewMessages = 10;
+
+        /**
+         * 一次刷新最多概括的消息数
+         */
+        private int maxBatchMessages = 60;
+
+        /**
+         * 摘要的最大字数
+         */
+        private int maxChars = 800;
+
+        /**
+         * 内存中缓存的会话摘要数
+         */
+        private int cacheSize = 1000;
+    }
+}
@@ -0,0 +1,13 @@
+package com.xz.xzaiagent.chatmemory;
+
+/**
+ * 会话过期回调：ChatMemoryJanitor 删除长期未活跃会话的文件后通知持有该会话内存状态的组件（写回缓存、摘要缓存、相关性索引），
+ * 使内存中的状态与磁盘保持一致
+ */
+public interface ConversationExpiryListener {
+
+    /**
+     * 会话的持久化数据已被删除
+     */
+    void onConversationExpired(String conversationId);
+}
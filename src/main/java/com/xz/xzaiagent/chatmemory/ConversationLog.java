@@ -0,0 +1,150 @@
+package com.xz.xzaiagent.chatmemory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 会话日志的记录帧格式：每次 add 追加一条记录
+ * <pre>
+ * +----------------+----------------+-----------------------+
+ * | payload 长度 4B | payload CRC32 4B | payload（MessageCodec） |
+ * +----------------+----------------+-----------------------+
+ * </pre>
+ * 进程在写入中途崩溃时，文件末尾可能留下不完整或校验失败的记录（撕裂尾部），读取时从该位置起全部忽略
+ * <p>
+ * 每个日志旁有一个索引文件，每条记录对应一个定长索引项：
+ * <pre>
+ * +-------------------+-----------------+
+ * | 记录起始偏移 8B     | 记录中的消息数 4B |
+ * +-------------------+-----------------+
+ * </pre>
+ * 读取最后 N 条消息时从索引末尾向前累加消息数，只读取并反序列化日志尾部的若干条记录
+ */
+final class ConversationLog {
+
+    /**
+     * 记录头长度：长度 + CRC32
+     */
+    static final int HEADER_BYTES = 8;
+
+    /**
+     * 索引项长度：偏移 + 消息数
+     */
+    static final int INDEX_ENTRY_BYTES = 12;
+
+    private ConversationLog() {
+    }
+
+    /**
+     * 扫描结果
+     *
+     * @param payloads    所有完整且校验通过的记录内容
+     * @param offsets     每条记录的起始偏移
+     * @param validLength 最后一条有效记录结束的位置
+     * @param tornTail    validLength 之后是否还有残缺数据
+     */
+    record ScanResult(List<byte[]> payloads, List<Long> offsets, long validLength, boolean tornTail) {
+    }
+
+    /**
+     * 把 payload 封装成一条记录
+     */
+    static ByteBuffer frame(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(crc32(payload, 0, payload.length));
+        buffer.put(payload);
+        return buffer.flip();
+    }
+
+    /**
+     * 生成一个索引项
+     */
+    static ByteBuffer indexEntry(long offset, int messageCount) {
+        return ByteBuffer.allocate(INDEX_ENTRY_BYTES).putLong(offset).putInt(messageCount).flip();
+    }
+
+    /**
+     * 顺序读取日志文件中的全部有效记录，遇到第一条残缺或校验失败的记录即停止
+     */
+    static ScanResult scan(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        List<byte[]> payloads = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        int offset = 0;
+        while (bytes.length - offset >= HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.wrap(bytes, offset, HEADER_BYTES);
+            int length = header.getInt();
+            int crc = header.getInt();
+            int start = offset + HEADER_BYTES;
+            if (length < 0 || length > bytes.length - start || crc32(bytes, start, length) != crc)
+                break;
+            byte[] payload = new byte[length];
+            System.arraycopy(bytes, start, payload, 0, length);
+            payloads.add(payload);
+            offsets.add((long) offset);
+            offset = start + length;
+        }
+        return new ScanResult(payloads, offsets, offset, offset < bytes.length);
+    }
+
+    /**
+     * 读取 [from, to) 区间内的连续记录（区间来自索引，应全部有效，否则抛出异常）
+     */
+    static List<byte[]> read(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(to - from));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position()) < 0)
+                throw new EOFException("会话日志长度小于索引记录的长度");
+        }
+        buffer.flip();
+        List<byte[]> payloads = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < HEADER_BYTES)
+                throw new IOException("会话日志记录不完整");
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length < 0 || length > buffer.remaining())
+                throw new IOException("会话日志记录长度无效：" + length);
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (crc32(payload, 0, length) != crc)
+                throw new IOException("会话日志记录校验失败");
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    /**
+     * 检查 offset 处是否为一条校验通过、且恰好结束于 fileSize 的记录，用于判断索引与日志是否一致
+     */
+    static boolean endsWithRecordAt(FileChannel channel, long offset, long fileSize) throws IOException {
+        if (offset < 0 || fileSize - offset < HEADER_BYTES)
+            return false;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        channel.read(header, offset);
+        header.flip();
+        int length = header.getInt();
+        if (length < 0 || offset + HEADER_BYTES + length != fileSize)
+            return false;
+        try {
+            read(channel, offset, fileSize);  // 校验 CRC
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int crc32(byte[] bytes, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        return (int) crc32.getValue();
+    }
+}
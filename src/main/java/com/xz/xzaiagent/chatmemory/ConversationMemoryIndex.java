@@ -0,0 +1,496 @@
+package com.xz.xzaiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 对话记忆的相关性索引：按“轮”（一条用户消息及其后的回复）索引会话历史，检索与当前问题相关的历史轮次
+ * <p>
+ * - 增量索引：会话首次访问时从 ChatMemory 读取最近 maxIndexedMessages 条建立索引，之后只追加新消息；
+ * 每轮的向量在下次检索时与问题一起批量计算，并按文本缓存（会话被淘汰后重建索引时无需重新计算）；
+ * - 相关性：向量余弦相似度，向量模型不可用时退化为词法匹配（英文单词 + 中文字二元组的 BM25）；
+ * - 选择：始终保留最近 recentTurns 轮，再按相关性从更早的轮次中选 topK 轮，总 token 数不超过 maxTokens，最后按时间顺序排列。
+ * 会话与向量缓存都有容量上限，超出时淘汰最久未访问的条目
+ */
+@Slf4j
+public class ConversationMemoryIndex implements ConversationExpiryListener {
+
+    private final ChatMemory chatMemory;
+
+    /**
+     * 为 null 时只使用词法匹配
+     */
+    private final EmbeddingModel embeddingModel;
+
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator();
+
+    private final int topK;
+
+    private final int recentTurns;
+
+    private final int maxTokens;
+
+    /**
+     * 向量相似度低于该值的轮次不注入
+     */
+    private final double minScore;
+
+    private final int maxIndexedMessages;
+
+    private final int maxConversations;
+
+    private final int embeddingCacheSize;
+
+    /**
+     * 按访问顺序排列的会话索引，访问需持有该 Map 的锁
+     */
+    private final LinkedHashMap<String, ConversationTurns> conversations = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 轮次文本 -> 向量，访问需持有该 Map 的锁
+     */
+    private final LinkedHashMap<String, float[]> embeddingCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 一轮对话
+     */
+    private static final class Turn {
+
+        final List<Message> messages = new ArrayList<>();
+
+        /**
+         * 以下字段在追加消息后失效，按需重新计算
+         */
+        String text;
+
+        int tokens = -1;
+
+        float[] embedding;
+
+        Map<String, Integer> terms;
+    }
+
+    /**
+     * 单个会话的轮次，访问需持有该对象的锁
+     */
+    private static final class ConversationTurns {
+
+        final List<Turn> turns = new ArrayList<>();
+
+        int messageCount;
+
+        boolean loaded;
+    }
+
+    private record Scored(Turn turn, double score) {
+    }
+
+    /**
+     * 问题的向量与本次新计算的轮次向量（按轮次文本）
+     */
+    private record QueryEmbeddings(float[] query, Map<String, float[]> turns) {
+    }
+
+    /**
+     * @param chatMemory         会话历史来源
+     * @param embeddingModel     向量模型，为 null 时只使用词法匹配
+     * @param topK               最多注入的相关历史轮数（不含最近的轮次）
+     * @param recentTurns        始终注入的最近轮数
+     * @param maxTokens          注入历史的 token 预算
+     * @param minScore           向量相似度阈值
+     * @param maxIndexedMessages 每个会话最多索引的消息数
+     * @param maxConversations   最多索引的会话数
+     * @param embeddingCacheSize 向量缓存条数
+     */
+    public ConversationMemoryIndex(ChatMemory chatMemory, EmbeddingModel embeddingModel, int topK, int recentTurns,
+                                   int maxTokens, double minScore, int maxIndexedMessages, int maxConversations,
+                                   int embeddingCacheSize) {
+        this.chatMemory = chatMemory;
+        this.embeddingModel = embeddingModel;
+        this.topK = Math.max(0, topK);
+        this.recentTurns = Math.max(0, recentTurns);
+        this.maxTokens = Math.max(1, maxTokens);
+        this.minScore = minScore;
+        this.maxIndexedMessages = Math.max(1, maxIndexedMessages);
+        this.maxConversations = Math.max(1, maxConversations);
+        this.embeddingCacheSize = Math.max(0, embeddingCacheSize);
+    }
+
+    /**
+     * 检索与 query 相关的历史消息
+     * <p>
+     * 向量模型是远程调用，在会话锁外计算：先在锁内收集需要计算向量的轮次，锁外批量计算，再回到锁内完成选择
+     *
+     * @param maxMessages 最多返回的消息数
+     * @return 按时间顺序排列的历史消息
+     */
+    public List<Message> retrieve(String conversationId, String query, int maxMessages) {
+        ConversationTurns conversation = conversation(conversationId);
+        boolean relevant = topK > 0 && query != null && !query.isBlank();
+
+        QueryEmbeddings embeddings = null;
+        if (relevant && embeddingModel != null) {
+            List<String> missing = new ArrayList<>();
+            boolean hasCandidates;
+            synchronized (conversation) {
+                List<Turn> candidates = conversation.turns.subList(0, Math.max(0, conversation.turns.size() - recentTurns));
+                hasCandidates = !candidates.isEmpty();
+                for (Turn turn : candidates) {
+                    if (turn.embedding == null)
+                        turn.embedding = cachedEmbedding(text(turn));
+                    if (turn.embedding == null)
+                        missing.add(text(turn));
+                }
+            }
+            if (hasCandidates)
+                embeddings = embed(query, missing);
+        }
+
+        synchronized (conversation) {
+            List<Turn> turns = conversation.turns;
+            if (turns.isEmpty() || maxMessages <= 0)
+                return new ArrayList<>();
+
+            int recentFrom = Math.max(0, turns.size() - recentTurns);
+            // 选中的轮次 -> 注入的消息（超出预算的最新一轮为截断后的消息）
+            Map<Turn, List<Message>> selected = new HashMap<>();
+            int budget = maxTokens;
+            int messageBudget = maxMessages;
+            // 1、最近的轮次：从最新往前放入预算；放不下的轮次跳过，继续尝试更早的轮次，
+            // 最新一轮单独超出预算（较长的回复）时截断后放入，它通常是最需要的上下文
+            for (int i = turns.size() - 1; i >= recentFrom; i--) {
+                Turn turn = turns.get(i);
+                List<Message> messages = turn.messages;
+                int tokens = tokens(turn);
+                if (tokens > budget || messages.size() > messageBudget) {
+                    if (i != turns.size() - 1)
+                        continue;
+                    messages = truncate(turn, budget, messageBudget);
+                    if (messages.isEmpty())
+                        continue;
+                    tokens = Math.min(budget, tokenCountEstimator.estimate(joinedText(messages)));
+                }
+                selected.put(turn, messages);
+                budget -= tokens;
+                messageBudget -= messages.size();
+            }
+            // 2、更早的轮次：按相关性选择
+            if (relevant && recentFrom > 0) {
+                int picked = 0;
+                for (Scored scored : score(turns.subList(0, recentFrom), query, embeddings)) {
+                    Turn turn = scored.turn();
+                    if (tokens(turn) > budget || turn.messages.size() > messageBudget)
+                        continue;
+                    selected.put(turn, turn.messages);
+                    budget -= tokens(turn);
+                    messageBudget -= turn.messages.size();
+                    if (++picked == topK)
+                        break;
+                }
+            }
+            // 按原始顺序输出
+            List<Message> messages = new ArrayList<>();
+            for (Turn turn : turns) {
+                List<Message> turnMessages = selected.get(turn);
+                if (turnMessages != null)
+                    messages.addAll(turnMessages);
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * 把一轮对话截断到 token 与条数预算内：保留开头的消息，超出部分只截断最长的文本（通常是助手的长回复），
+     * 较短的消息（如用户的问题）保持完整，需持有会话锁
+     */
+    private List<Message> truncate(Turn turn, int budget, int messageBudget) {
+        if (budget <= 0 || messageBudget <= 0)
+            return List.of();
+        List<Message> messages = turn.messages.subList(0, Math.min(messageBudget, turn.messages.size()));
+        String joined = joinedText(messages);
+        int tokens = tokenCountEstimator.estimate(joined);
+        if (tokens <= budget)
+            return new ArrayList<>(messages);
+        // 按 token 比例估算可保留的字符数，再求每条消息的统一长度上限
+        long allowed = (long) joined.length() * budget / tokens;
+        List<Integer> lengths = new ArrayList<>();
+        for (Message message : messages)
+            lengths.add(message.getText() == null ? 0 : message.getText().length());
+        lengths.sort(null);
+        long cap = 0;
+        long remaining = allowed;
+        for (int i = 0; i < lengths.size(); i++) {
+            long share = remaining / (lengths.size() - i);
+            if (lengths.get(i) > share) {
+                cap = share;
+                break;
+            }
+            remaining -= lengths.get(i);
+            cap = lengths.get(i);
+        }
+        List<Message> truncated = new ArrayList<>();
+        for (Message message : messages) {
+            String text = message.getText();
+            if (text == null || text.length() <= cap) {
+                truncated.add(message);
+                continue;
+            }
+            String kept = text.substring(0, (int) cap) + "……";
+            if (message instanceof UserMessage)
+                truncated.add(new UserMessage(kept));
+            else if (message instanceof AssistantMessage)
+                truncated.add(new AssistantMessage(kept));
+            else
+                truncated.add(message);
+        }
+        return truncated;
+    }
+
+    /**
+     * 追加已写入 ChatMemory 的新消息（用户消息开启新的一轮，其它消息并入当前轮）；
+     * 会话尚未索引（或已被淘汰）时忽略，下次检索时会从 ChatMemory 加载，其中已包含这些消息
+     */
+    public void append(String conversationId, List<Message> messages) {
+        ConversationTurns conversation;
+        synchronized (conversations) {
+            conversation = conversations.get(conversationId);
+        }
+        if (conversation == null)
+            return;
+        synchronized (conversation) {
+            if (conversation.loaded)
+                appendTo(conversation, messages);
+        }
+    }
+
+    /**
+     * 会话已过期删除：丢弃索引，之后的访问从 ChatMemory 重新加载
+     */
+    @Override
+    public void onConversationExpired(String conversationId) {
+        ConversationTurns conversation;
+        synchronized (conversations) {
+            conversation = conversations.remove(conversationId);
+        }
+        if (conversation == null)
+            return;
+        synchronized (conversation) {
+            conversation.turns.clear();
+            conversation.messageCount = 0;
+            conversation.loaded = false;
+        }
+    }
+
+    /**
+     * 获取会话索引，首次访问时从 ChatMemory 加载
+     */
+    private ConversationTurns conversation(String conversationId) {
+        ConversationTurns conversation;
+        synchronized (conversations) {
+            conversation = conversations.computeIfAbsent(conversationId, k -> new ConversationTurns());
+            if (conversations.size() > maxConversations)
+                conversations.remove(conversations.keySet().iterator().next());
+        }
+        // 加载在 Map 锁外进行，同一会话的并发请求由会话锁保证只加载一次
+        synchronized (conversation) {
+            if (!conversation.loaded) {
+                appendTo(conversation, chatMemory.get(conversationId, maxIndexedMessages));
+                conversation.loaded = true;
+            }
+        }
+        return conversation;
+    }
+
+    private void appendTo(ConversationTurns conversation, List<Message> messages) {
+        for (Message message : messages) {
+            List<Turn> turns = conversation.turns;
+            if (message instanceof UserMessage || turns.isEmpty())
+                turns.add(new Turn());
+            Turn turn = turns.get(turns.size() - 1);
+            turn.messages.add(message);
+            turn.text = null;
+            turn.tokens = -1;
+            turn.embedding = null;
+            turn.terms = null;
+            conversation.messageCount++;
+        }
+        // 超出上限时丢弃最早的轮次
+        while (conversation.messageCount > maxIndexedMessages && conversation.turns.size() > 1)
+            conversation.messageCount -= conversation.turns.remove(0).messages.size();
+    }
+
+    // ------------------------------ 相关性 ------------------------------
+
+    /**
+     * 按相关性从高到低排序，不相关的轮次不返回；没有向量（未启用或计算失败）时使用词法匹配，需持有会话锁
+     */
+    private List<Scored> score(List<Turn> candidates, String query, QueryEmbeddings embeddings) {
+        List<Scored> scored = embeddings == null ? scoreLexically(candidates, query) : scoreByEmbedding(candidates, embeddings);
+        scored.sort(Comparator.comparingDouble(Scored::score).reversed());
+        return scored;
+    }
+
+    /**
+     * 问题与尚未计算的轮次一次批量请求（不持有会话锁），向量模型调用失败时返回 null
+     */
+    private QueryEmbeddings embed(String query, List<String> missing) {
+        List<String> texts = new ArrayList<>();
+        texts.add(query);
+        texts.addAll(missing);
+        List<float[]> embeddings;
+        try {
+            embeddings = embeddingModel.embed(texts);
+        } catch (Exception e) {
+            log.warn("计算对话记忆向量失败，退化为词法匹配：{}", e.getMessage());
+            return null;
+        }
+        Map<String, float[]> computed = new HashMap<>();
+        for (int i = 1; i < texts.size(); i++)
+            computed.put(texts.get(i), embeddings.get(i));
+        cacheEmbeddings(computed);
+        return new QueryEmbeddings(embeddings.get(0), computed);
+    }
+
+    /**
+     * 向量相似度；计算向量期间新追加内容的轮次没有向量，本次视为不相关，需持有会话锁
+     */
+    private List<Scored> scoreByEmbedding(List<Turn> candidates, QueryEmbeddings embeddings) {
+        List<Scored> scored = new ArrayList<>();
+        for (Turn turn : candidates) {
+            if (turn.embedding == null)
+                turn.embedding = embeddings.turns().get(text(turn));
+            double score = cosine(embeddings.query(), turn.embedding);
+            if (score >= minScore)
+                scored.add(new Scored(turn, score));
+        }
+        return scored;
+    }
+
+    /**
+     * BM25：词项为英文单词（小写）与中文字二元组，idf 在候选轮次内统计
+     */
+    private List<Scored> scoreLexically(List<Turn> candidates, String query) {
+        Map<String, Integer> queryTerms = terms(query);
+        Map<String, Integer> documentFrequency = new HashMap<>();
+        double totalLength = 0;
+        for (Turn turn : candidates) {
+            if (turn.terms == null)
+                turn.terms = terms(text(turn));
+            totalLength += turn.terms.values().stream().mapToInt(Integer::intValue).sum();
+            for (String term : queryTerms.keySet()) {
+                if (turn.terms.containsKey(term))
+                    documentFrequency.merge(term, 1, Integer::sum);
+            }
+        }
+        double averageLength = Math.max(1, totalLength / Math.max(1, candidates.size()));
+        int n = candidates.size();
+        List<Scored> scored = new ArrayList<>();
+        for (Turn turn : candidates) {
+            int length = turn.terms.values().stream().mapToInt(Integer::intValue).sum();
+            double score = 0;
+            for (String term : queryTerms.keySet()) {
+                Integer tf = turn.terms.get(term);
+                if (tf == null)
+                    continue;
+                int df = documentFrequency.get(term);
+                double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+                score += idf * tf * 2.2 / (tf + 1.2 * (0.25 + 0.75 * length / averageLength));
+            }
+            if (score > 0)
+                scored.add(new Scored(turn, score));
+        }
+        return scored;
+    }
+
+    static Map<String, Integer> terms(String text) {
+        Map<String, Integer> terms = new HashMap<>();
+        StringBuilder word = new StringBuilder();
+        char previousHan = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN) {
+                if (previousHan != 0)
+                    terms.merge(new String(new char[]{previousHan, c}), 1, Integer::sum);
+                previousHan = c;
+                addWord(terms, word);
+            } else {
+                previousHan = 0;
+                if (Character.isLetterOrDigit(c))
+                    word.append(Character.toLowerCase(c));
+                else
+                    addWord(terms, word);
+            }
+        }
+        addWord(terms, word);
+        return terms;
+    }
+
+    private static void addWord(Map<String, Integer> terms, StringBuilder word) {
+        if (word.length() >= 2)
+            terms.merge(word.toString(), 1, Integer::sum);
+        word.setLength(0);
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        if (a == null || b == null || a.length != b.length)
+            return 0;
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+    }
+
+    private float[] cachedEmbedding(String text) {
+        synchronized (embeddingCache) {
+            return embeddingCache.get(text);
+        }
+    }
+
+    private void cacheEmbeddings(Map<String, float[]> embeddings) {
+        if (embeddingCacheSize == 0)
+            return;
+        synchronized (embeddingCache) {
+            embeddingCache.putAll(embeddings);
+            while (embeddingCache.size() > embeddingCacheSize)
+                embeddingCache.remove(embeddingCache.keySet().iterator().next());
+        }
+    }
+
+    private String text(Turn turn) {
+        if (turn.text == null)
+            turn.text = joinedText(turn.messages);
+        return turn.text;
+    }
+
+    private static String joinedText(List<Message> messages) {
+        StringBuilder text = new StringBuilder();
+        for (Message message : messages) {
+            if (message.getText() != null && !message.getText().isBlank())
+                text.append(message.getText()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private int tokens(Turn turn) {
+        if (turn.tokens < 0)
+            turn.tokens = tokenCountEstimator.estimate(text(turn));
+        return turn.tokens;
+    }
+}
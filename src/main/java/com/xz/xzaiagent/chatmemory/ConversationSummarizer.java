@@ -0,0 +1,270 @@
+package com.xz.xzaiagent.chatmemory;
+
+import com.xz.xzaiagent.llm.LlmScheduler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 会话滚动摘要：把移出最近窗口（最近 window 条消息）的较早消息增量概括为一段摘要，Prompt 中用它代替大量原始消息
+ * <p>
+ * 刷新在后台单线程中执行，不占用请求路径：每轮对话结束后 requestRefresh 登记会话（同一会话排队中只登记一次），
+ * 后台读取最近 window + maxBatchMessages 条消息，借助摘要中记录的锚点（已概括的最后两条消息的指纹）找出新移出窗口的消息，
+ * 攒够 minNewMessages 条后连同旧摘要交给模型生成新摘要；一次积压超过 maxBatchMessages 条时只概括最近的部分。
+ * <p>
+ * 摘要保存在底层存储中（ConversationSummaryStore，与会话数据放在一起），并在内存中缓存最近访问的会话。
+ * 生成摘要的模型调用与其他端点一样经 LlmScheduler 调度（AGENT 通道，低于交互式对话），计入全局并发上限
+ */
+@Slf4j
+public class ConversationSummarizer implements ConversationExpiryListener, Closeable {
+
+    private static final String SUMMARY_PROMPT = """
+            你负责维护一段对话的滚动摘要。给定已有摘要和之后新增的对话，输出更新后的完整摘要：
+            保留用户的身份背景、偏好、已确认的事实与决定、尚未解决的问题，省略寒暄和重复内容；
+            使用第三人称陈述，不要编造对话中没有的信息，不超过 %d 字，只输出摘要正文。
+            """;
+
+    /**
+     * 单条消息写入摘要请求时保留的最大字符数
+     */
+    private static final int MAX_MESSAGE_CHARS = 500;
+
+    private final ChatMemory chatMemory;
+
+    private final ConversationSummaryStore summaryStore;
+
+    private final ChatModel chatModel;
+
+    /**
+     * 为 null 时不经调度直接调用模型
+     */
+    private final LlmScheduler llmScheduler;
+
+    private final int window;
+
+    private final int minNewMessages;
+
+    private final int maxBatchMessages;
+
+    private final int maxChars;
+
+    private final int cacheSize;
+
+    /**
+     * 最近访问的会话摘要，访问需持有该 Map 的锁
+     */
+    private final LinkedHashMap<String, ConversationSummary> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 已登记、等待刷新的会话
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("chat-memory-summarizer").daemon(true).factory());
+
+    /**
+     * @param chatMemory       读取会话消息
+     * @param summaryStore     摘要的存储
+     * @param chatModel        生成摘要的模型
+     * @param llmScheduler     模型调用调度器，为 null 时不经调度
+     * @param window           不概括的最近消息数（与注入 Prompt 的原始消息条数一致）
+     * @param minNewMessages   新移出窗口的消息攒够该条数才刷新摘要
+     * @param maxBatchMessages 一次刷新最多概括的消息数
+     * @param maxChars         摘要的最大字数
+     * @param cacheSize        内存中缓存的会话摘要数
+     */
+    public ConversationSummarizer(ChatMemory chatMemory, ConversationSummaryStore summaryStore, ChatModel chatModel,
+                                  LlmScheduler llmScheduler, int window, int minNewMessages, int maxBatchMessages,
+                                  int maxChars, int cacheSize) {
+        this.chatMemory = chatMemory;
+        this.summaryStore = summaryStore;
+        this.chatModel = chatModel;
+        this.llmScheduler = llmScheduler;
+        this.window = Math.max(0, window);
+        this.minNewMessages = Math.max(1, minNewMessages);
+        this.maxBatchMessages = Math.max(this.minNewMessages, maxBatchMessages);
+        this.maxChars = Math.max(1, maxChars);
+        this.cacheSize = Math.max(1, cacheSize);
+    }
+
+    /**
+     * 获取会话当前的摘要（请求路径调用，不会触发模型调用）
+     */
+    public ConversationSummary summary(String conversationId) {
+        synchronized (cache) {
+            ConversationSummary summary = cache.get(conversationId);
+            if (summary != null)
+                return summary;
+        }
+        ConversationSummary summary = summaryStore.loadSummary(conversationId);
+        synchronized (cache) {
+            // 读取期间后台可能已经写入了更新的摘要，以缓存中的为准
+            ConversationSummary cached = cache.putIfAbsent(conversationId, summary);
+            if (cached != null)
+                return cached;
+            evictIfFull();
+        }
+        return summary;
+    }
+
+    /**
+     * 会话已过期删除（摘要文件随之删除）：移除缓存的摘要，避免其锚点与之后的新消息对不上
+     */
+    @Override
+    public void onConversationExpired(String conversationId) {
+        pending.remove(conversationId);
+        synchronized (cache) {
+            cache.remove(conversationId);
+        }
+    }
+
+    /**
+     * 登记会话，由后台刷新摘要（一轮对话结束后调用）
+     */
+    public void requestRefresh(String conversationId) {
+        if (!pending.add(conversationId))
+            return;
+        try {
+            executor.execute(() -> {
+                // 先移除登记：刷新期间又有新的对话时会再次登记
+                pending.remove(conversationId);
+                try {
+                    refresh(conversationId);
+                } catch (Exception e) {
+                    log.warn("刷新会话摘要失败：{}", conversationId, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(conversationId);
+        }
+    }
+
+    /**
+     * 停止接收新的刷新，等待正在执行的刷新完成（排队中的刷新丢弃，下次对话时重新登记）
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 把新移出窗口的消息并入摘要
+     */
+    void refresh(String conversationId) {
+        ConversationSummary current = summary(conversationId);
+        List<Message> messages = chatMemory.get(conversationId, window + maxBatchMessages);
+        int evicted = messages.size() - window;
+        if (evicted <= 0)
+            return;
+        List<Message> older = messages.subList(0, evicted);
+        // 从锚点之后开始；找不到锚点（首次概括或积压超过一批）时概括读到的全部较早消息
+        int from = 0;
+        if (!current.isEmpty()) {
+            for (int i = older.size(); i > 0; i--) {
+                if (fingerprint(older, i) == current.anchor()) {
+                    from = i;
+                    break;
+                }
+            }
+        }
+        List<Message> fresh = older.subList(from, older.size());
+        if (fresh.size() < minNewMessages)
+            return;
+
+        long start = System.nanoTime();
+        String text = summarize(conversationId, current.text(), fresh);
+        if (text.isEmpty())
+            return;
+        ConversationSummary updated = new ConversationSummary(text, fingerprint(older, older.size()),
+                current.summarizedMessages() + fresh.size());
+        summaryStore.saveSummary(conversationId, updated);
+        cacheSummary(conversationId, updated);
+        log.info("会话 {} 的摘要已更新：新增概括 {} 条消息，摘要 {} 字，耗时 {} ms",
+                conversationId, fresh.size(), text.length(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private String summarize(String conversationId, String previous, List<Message> messages) {
+        StringBuilder content = new StringBuilder();
+        content.append("已有摘要：\n").append(previous.isEmpty() ? "（无）" : previous).append("\n\n新增对话：\n");
+        for (Message message : messages) {
+            String text = message.getText();
+            if (text == null || text.isBlank())
+                continue;
+            if (text.length() > MAX_MESSAGE_CHARS)
+                text = text.substring(0, MAX_MESSAGE_CHARS) + "...";
+            content.append(message.getMessageType() == MessageType.USER ? "用户：" : "助手：").append(text).append('\n');
+        }
+        Prompt prompt = new Prompt(List.of(
+                new SystemMessage(SUMMARY_PROMPT.formatted(maxChars)), new UserMessage(content.toString())));
+        // 后台任务走 AGENT 通道，让出并发给交互式对话；排队超时抛出 LlmBusyException，本次刷新放弃，下一轮对话后重新登记
+        LlmScheduler.Permit permit = llmScheduler != null && llmScheduler.isEnabled()
+                ? llmScheduler.acquire(LlmScheduler.Lane.AGENT, conversationId) : null;
+        ChatResponse response;
+        try {
+            response = chatModel.call(prompt);
+        } finally {
+            if (permit != null)
+                permit.release();
+        }
+        String text = response == null || response.getResult() == null ? null : response.getResult().getOutput().getText();
+        if (text == null)
+            return "";
+        text = text.strip();
+        return text.length() > maxChars ? text.substring(0, maxChars) : text;
+    }
+
+    /**
+     * messages 中第 end 条之前两条消息（不足两条时为一条）的指纹
+     */
+    private static long fingerprint(List<Message> messages, int end) {
+        CRC32 crc32 = new CRC32();
+        for (int i = Math.max(0, end - 2); i < end; i++) {
+            Message message = messages.get(i);
+            crc32.update(message.getMessageType().name().getBytes(StandardCharsets.UTF_8));
+            if (message.getText() != null)
+                crc32.update(message.getText().getBytes(StandardCharsets.UTF_8));
+            crc32.update(0);
+        }
+        // 高位放入消息条数，避免与空摘要的锚点 0 混淆
+        return ((long) (end - Math.max(0, end - 2)) << 32) | crc32.getValue();
+    }
+
+    private void cacheSummary(String conversationId, ConversationSummary summary) {
+        synchronized (cache) {
+            cache.put(conversationId, summary);
+            evictIfFull();
+        }
+    }
+
+    /**
+     * 需持有 cache 的锁
+     */
+    private void evictIfFull() {
+        if (cache.size() > cacheSize)
+            cache.remove(cache.keySet().iterator().next());
+    }
+}
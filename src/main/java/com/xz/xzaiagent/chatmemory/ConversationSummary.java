@@ -0,0 +1,58 @@
+package com.xz.xzaiagent.chatmemory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 会话的滚动摘要：概括已移出最近窗口的较早消息
+ *
+ * @param text               摘要内容
+ * @param anchor             已概括的最后两条消息的指纹，用于在会话中定位下一批待概括的消息
+ * @param summarizedMessages 已概括的消息总数（仅用于统计）
+ */
+public record ConversationSummary(String text, long anchor, long summarizedMessages) {
+
+    public static final ConversationSummary EMPTY = new ConversationSummary("", 0, 0);
+
+    private static final int VERSION = 1;
+
+    public boolean isEmpty() {
+        return text.isEmpty();
+    }
+
+    /**
+     * 编码为摘要文件的内容：[VERSION][anchor][summarizedMessages][text 长度][text UTF-8]
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(VERSION);
+            out.writeLong(anchor);
+            out.writeLong(summarizedMessages);
+            out.writeInt(textBytes.length);
+            out.write(textBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ConversationSummary decode(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int version = in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("不支持的摘要文件版本：" + version);
+            long anchor = in.readLong();
+            long summarizedMessages = in.readLong();
+            byte[] textBytes = new byte[in.readInt()];
+            in.readFully(textBytes);
+            return new ConversationSummary(new String(textBytes, StandardCharsets.UTF_8), anchor, summarizedMessages);
+        }
+    }
+}
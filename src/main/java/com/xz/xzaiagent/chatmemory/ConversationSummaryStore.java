@@ -0,0 +1,14 @@
+package com.xz.xzaiagent.chatmemory;
+
+/**
+ * 会话摘要的存储，由对话记忆的底层存储实现，摘要与会话数据存放在一起（随会话一起清除、过期）
+ */
+public interface ConversationSummaryStore {
+
+    /**
+     * @return 会话的摘要，没有时返回 ConversationSummary.EMPTY
+     */
+    ConversationSummary loadSummary(String conversationId);
+
+    void saveSummary(String conversationId, ConversationSummary summary);
+}
@@ -0,0 +1,247 @@
+package com.xz.xzaiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话文件的组提交写入器：所有会话的写入由一个专用线程按提交顺序批量执行
+ * <p>
+ * 每批最多 MAX_BATCH 个写入：同一文件的多次追加合并为一次打开与一次写入，同一快照只写最后一个版本，
+ * 先写完全部日志再写索引（与单次追加一样，索引不会领先于日志）；需要刷盘时每个文件每批只 force 一次。
+ * 索引不刷盘：崩溃后索引缺项或尾部残缺时，InFileChatMemory 校验发现与日志不一致会从日志重建
+ * <p>
+ * 写入结果通过返回的 CompletableFuture 通知，同一会话的写入按提交顺序完成。写入失败的会话 id 加入 failedConversations，
+ * 之后该会话的写入全部跳过（以失败完成），避免在残缺记录之后继续追加；调用方重新校验磁盘上的文件后将其移除
+ */
+@Slf4j
+final class GroupCommitWriter implements Closeable {
+
+    /**
+     * 每批最多处理的写入数
+     */
+    static final int MAX_BATCH = 256;
+
+    /**
+     * 待写队列容量，写满后提交方阻塞（ASYNC 模式下的背压）
+     */
+    static final int QUEUE_CAPACITY = 4096;
+
+    private final InFileChatMemory.Durability durability;
+
+    private final Set<String> failedConversations;
+
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    /**
+     * 一次写入：追加一条日志记录与对应的索引项，或整体替换一个文件
+     *
+     * @param index      追加写入时的索引文件，替换写入时为 null
+     * @param indexEntry 追加写入时的索引项
+     * @param replace    是否整体替换 file
+     */
+    private record Write(String conversationId, Path file, ByteBuffer content, Path index, ByteBuffer indexEntry,
+                         boolean replace, CompletableFuture<Void> done) {
+    }
+
+    GroupCommitWriter(InFileChatMemory.Durability durability, Set<String> failedConversations) {
+        this.durability = durability;
+        this.failedConversations = failedConversations;
+        this.thread = Thread.ofPlatform().name("chat-memory-writer").daemon(true).start(this::run);
+    }
+
+    /**
+     * 提交一次日志追加：先写 record 到 log，再写 indexEntry 到 index
+     */
+    CompletableFuture<Void> append(String conversationId, Path log, ByteBuffer record, Path index, ByteBuffer indexEntry) {
+        return submit(new Write(conversationId, log, record, index, indexEntry, false, new CompletableFuture<>()));
+    }
+
+    /**
+     * 提交一次整体替换（临时文件 + 原子移动）
+     */
+    CompletableFuture<Void> replace(String conversationId, Path file, ByteBuffer content) {
+        return submit(new Write(conversationId, file, content, null, null, true, new CompletableFuture<>()));
+    }
+
+    private CompletableFuture<Void> submit(Write write) {
+        if (closed)
+            throw new IllegalStateException("对话记忆写入器已关闭");
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.done().completeExceptionally(e);
+        }
+        return write.done();
+    }
+
+    /**
+     * 停止接收新的写入，等待队列中的写入全部完成
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive())
+            log.warn("对话记忆写入器未能在 30 秒内写完，剩余 {} 个写入", queue.size());
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                commit(batch);
+            } catch (InterruptedException e) {
+                // 只有关闭时才会被中断，继续写完队列
+                closed = true;
+            } catch (Exception e) {
+                log.error("对话记忆组提交失败", e);
+                batch.forEach(write -> fail(write, e));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 执行一批写入
+     */
+    private void commit(List<Write> batch) {
+        if (durability == InFileChatMemory.Durability.PER_WRITE_FSYNC) {
+            // 逐个写入并刷盘
+            for (Write write : batch) {
+                if (failedConversations.contains(write.conversationId())) {
+                    fail(write, null);
+                    continue;
+                }
+                try {
+                    if (write.replace()) {
+                        replaceFile(write.file(), write.content(), true);
+                    } else {
+                        appendTo(write.file(), List.of(write.content()), true);
+                        appendTo(write.index(), List.of(write.indexEntry()), false);
+                    }
+                    write.done().complete(null);
+                } catch (IOException e) {
+                    fail(write, e);
+                }
+            }
+            return;
+        }
+
+        boolean fsync = durability == InFileChatMemory.Durability.BATCHED_FSYNC;
+        Map<Path, List<Write>> appends = new LinkedHashMap<>();
+        Map<Path, List<Write>> replaces = new LinkedHashMap<>();
+        for (Write write : batch) {
+            if (failedConversations.contains(write.conversationId()))
+                fail(write, null);
+            else
+                (write.replace() ? replaces : appends).computeIfAbsent(write.file(), k -> new ArrayList<>()).add(write);
+        }
+
+        // 日志：同一文件的记录一次写入
+        for (List<Write> writes : appends.values()) {
+            try {
+                appendTo(writes.get(0).file(), writes.stream().map(Write::content).toList(), fsync);
+            } catch (IOException e) {
+                writes.forEach(write -> fail(write, e));
+            }
+        }
+        // 索引：日志写入成功后才写
+        for (List<Write> writes : appends.values()) {
+            Write first = writes.get(0);
+            if (failedConversations.contains(first.conversationId())) {
+                writes.forEach(write -> fail(write, null));
+                continue;
+            }
+            try {
+                appendTo(first.index(), writes.stream().map(Write::indexEntry).toList(), false);
+                writes.forEach(write -> write.done().complete(null));
+            } catch (IOException e) {
+                writes.forEach(write -> fail(write, e));
+            }
+        }
+        // 快照：只写最后一个版本，较早的版本随之完成
+        for (List<Write> writes : replaces.values()) {
+            Write last = writes.get(writes.size() - 1);
+            try {
+                replaceFile(last.file(), last.content(), fsync);
+                writes.forEach(write -> write.done().complete(null));
+            } catch (IOException e) {
+                writes.forEach(write -> fail(write, e));
+            }
+        }
+    }
+
+    private void fail(Write write, Exception cause) {
+        if (write.done().isDone())
+            return;
+        if (cause != null)
+            log.error("写入会话文件失败：{}", write.file(), cause);
+        failedConversations.add(write.conversationId());
+        write.done().completeExceptionally(cause != null ? cause : new IOException("同一会话之前的写入失败，已跳过"));
+    }
+
+    private static void appendTo(Path file, List<ByteBuffer> buffers, boolean fsync) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer[] array = buffers.toArray(ByteBuffer[]::new);
+            long remaining = 0;
+            for (ByteBuffer buffer : array)
+                remaining += buffer.remaining();
+            while (remaining > 0)
+                remaining -= channel.write(array);
+            if (fsync)
+                channel.force(false);
+        }
+    }
+
+    /**
+     * 写入临时文件后原子替换目标文件，fsync 为 true 时移动前刷盘
+     */
+    static void replaceFile(Path target, ByteBuffer content, boolean fsync) throws IOException {
+        Path tmpPath = Path.of(target + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining())
+                channel.write(content);
+            if (fsync)
+                channel.force(true);
+        }
+        try {
+            Files.move(tmpPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException atomicEx) {
+            Files.move(tmpPath, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -1,40 +1,187 @@
 package com.xz.xzaiagent.chatmemory;
 
-import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.KryoException;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-import org.objenesis.strategy.StdInstantiatorStrategy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.Message;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
-public class InFileChatMemory implements ChatMemory {
+/**
+ * 基于文件的对话记忆，每个会话单独一个文件，支持两种存储模式：
+ * <p>
+ * SNAPSHOT：&lt;id&gt;.kryo 保存整个消息列表，每次 add 读取全部消息、追加后整体重写（临时文件 + 原子移动）；
+ * LOG：&lt;id&gt;.log 为追加写日志，每次 add 只追加一条记录（格式见 ConversationLog），后台定期把零散的小记录合并为定长的块；
+ * &lt;id&gt;.idx 记录每条记录的偏移与消息数，get 最后 N 条时只读取日志尾部，耗时与 N 相关而与会话总长度无关。
+ * <p>
+ * 目录布局：会话文件按 id 的哈希前缀分片存放在 BASE_DIR/ab/cd/ 下，避免单个目录中文件过多；
+ * 旧的平铺布局（BASE_DIR/&lt;id&gt;.kryo）在访问会话时按需迁移，也可由 ChatMemoryJanitor 在后台整体迁移
+ * LOG 模式首次访问旧的 .kryo 会话时自动转换为日志；崩溃后残留的撕裂尾部在下次访问时截断
+ * <p>
+ * &lt;id&gt;.summary 保存会话的滚动摘要（ConversationSummarizer 生成），与会话文件一起迁移、过期和删除
+ * <p>
+ * 文件内容由 MessageCodec 编解码（带版本头、可压缩），旧版本直接用 Kryo 写入的文件仍可读取，下次写入时转换为新格式
+ * <p>
+ * 写入：所有会话的文件写入交给 GroupCommitWriter 的专用线程批量执行（组提交），持久化级别由 Durability 决定；
+ * 读取、合并、删除会话前先等待该会话已提交的写入完成，保证读到自己的写入
+ * <p>
+ * 并发：Kryo 实例不是线程安全的，编解码时从 MessageCodec 的对象池借用；同一会话的读写由分段锁串行化（不同会话大概率落在不同分段上，可并行），
+ * 使用 ReentrantLock 而不是 synchronized，避免虚拟线程在文件 IO 期间钉住载体线程
+ */
+@Slf4j
+public class InFileChatMemory implements ChatMemory, ConversationSummaryStore, Closeable {
 
-    private final String BASE_DIR;
+    /**
+     * 存储模式
+     */
+    public enum StorageMode {
+        SNAPSHOT, LOG
+    }
+
+    /**
+     * 写入的持久化级别
+     */
+    public enum Durability {
+
+        /**
+         * add 提交到写入队列后立即返回，由写入线程批量写入，不刷盘（进程崩溃可能丢失队列中尚未写入的消息）
+         */
+        ASYNC,
 
-    private static final Kryo kryo = new Kryo();
+        /**
+         * add 等待所在批次写入并刷盘后返回，同一批次内每个文件只刷盘一次
+         */
+        BATCHED_FSYNC,
 
-    // 静态初始化块，在类被加载时只执行一次，用来初始化类的静态字段或做一些静态配置
-    // 如果写在构造函数里，每创建一个对象就会重复配置一次，浪费资源，而且有可能在并发情况下产生线程安全风险，kryo 的行为应该在类级别上定义，而不是实例级别
-    static {
-        // 默认情况下，Kryo 要求先注册所有要序列化的类，否则报错。这行代码关闭了这个限制：即使没有预注册类也能序列化/反序列化。
-        kryo.setRegistrationRequired(false);  // 不强制要求注册类
-        // Kryo 默认有时不能创建没有无参构造器的对象，会抛异常。这行设置了一种“宽松”的策略，可以“跳过构造函数”创建对象，从而支持序列化像 JPA 实体等没有显式构造函数的类
-        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());  // 设置标准的实例化策略
+        /**
+         * add 等待自己的写入单独刷盘后返回
+         */
+        PER_WRITE_FSYNC
     }
 
+    private final String BASE_DIR;
+
+    /**
+     * 会话文件的后缀：快照、日志、索引、摘要
+     */
+    static final List<String> CONVERSATION_SUFFIXES = List.of(".kryo", ".log", ".idx", ".summary");
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    /**
+     * 已确认存在的分片目录
+     */
+    private final Set<Path> shardDirs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 目录中是否可能还有旧的平铺布局文件，整体迁移完成后置为 false
+     */
+    private volatile boolean flatLayout;
+
+    private final StorageMode storageMode;
+
+    /**
+     * LOG 模式下，会话日志自上次压缩后新增的记录数超过该值时加入后台压缩队列
+     */
+    private final int compactThreshold;
+
+    /**
+     * LOG 模式下每个会话的状态，读写需持有该会话的分段锁
+     */
+    private final Map<String, LogState> logStates = new ConcurrentHashMap<>();
+
+    /**
+     * 等待压缩的会话
+     */
+    private final Set<String> pendingCompaction = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService compactor;
+
+    private final Durability durability;
+
+    private final GroupCommitWriter writer;
+
+    /**
+     * 每个会话最后一次提交给写入器的写入，完成后移除
+     */
+    private final Map<String, CompletableFuture<Void>> lastWrites = new ConcurrentHashMap<>();
+
+    /**
+     * 有写入失败的会话，下次访问时重新校验磁盘上的文件（由写入器添加）
+     */
+    private final Set<String> failedWrites = ConcurrentHashMap.newKeySet();
+
     /**
-     * 构造对象时，指定文件保存目录
+     * 会话锁分段数
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * 消息编解码器，快照与日志记录共用；可读取旧格式的文件
+     */
+    private final MessageCodec codec;
+
+    /**
+     * 构造对象时，指定文件保存目录（SNAPSHOT 模式）
      */
     public InFileChatMemory(String dir) {
+        this(dir, StorageMode.SNAPSHOT, Integer.MAX_VALUE, null, new MessageCodec(true, 1024), Durability.ASYNC);
+    }
+
+    /**
+     * @param dir               文件保存目录
+     * @param storageMode       存储模式
+     * @param compactThreshold  LOG 模式下触发压缩的新增记录数
+     * @param compactInterval   LOG 模式下后台压缩的执行间隔，为 null 时不启动后台压缩
+     * @param codec             消息编解码器
+     * @param durability        写入的持久化级别
+     */
+    public InFileChatMemory(String dir, StorageMode storageMode, int compactThreshold, Duration compactInterval,
+                            MessageCodec codec, Durability durability) {
         this.BASE_DIR = dir;
+        this.codec = codec;
+        this.durability = durability;
+        this.writer = new GroupCommitWriter(durability, failedWrites);
+        this.storageMode = storageMode;
+        this.compactThreshold = Math.max(1, compactThreshold);
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+        if (storageMode == StorageMode.LOG && compactInterval != null) {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("chat-memory-compactor").daemon(true).factory());
+            long intervalMillis = Math.max(1, compactInterval.toMillis());
+            this.compactor.scheduleWithFixedDelay(this::compactPending, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.compactor = null;
+        }
         File baseDir = new File(dir);
         if (!baseDir.exists())
             baseDir.mkdirs();  // 如果文件夹不存在，先创建文件夹
@@ -46,18 +193,45 @@ public class InFileChatMemory implements ChatMemory {
         // mkdirs() 会自动创建所有中间路径，不管 a、b 是否存在。
         // 推荐用 mkdirs()：更稳妥，尤其不确定父目录是否已存在时。
         // 用 mkdir()：适合能确保父目录已存在的场景。
+        this.flatLayout = hasFlatFiles();
     }
 
     @Override
     public void add(String conversationId, List<Message> messages) {
-        List<Message> messageList = getOrCreateConversation(conversationId);
-        messageList.addAll(messages);
-        saveConversation(conversationId, messageList);
+        if (storageMode == StorageMode.LOG) {
+            appendToLog(conversationId, messages);
+            return;
+        }
+        CompletableFuture<Void> written;
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            migrateFlat(conversationId);
+            ensureShardDir(conversationId);
+            awaitWrites(conversationId);
+            List<Message> messageList = getOrCreateConversation(conversationId);
+            messageList.addAll(messages);
+            written = saveConversation(conversationId, messageList);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(written);
     }
 
     @Override
     public List<Message> get(String conversationId, int lastN) {
-        List<Message> messageList = getOrCreateConversation(conversationId);
+        List<Message> messageList;
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            migrateFlat(conversationId);
+            if (storageMode == StorageMode.LOG)
+                return readFromLog(conversationId, lastN);
+            awaitWrites(conversationId);
+            messageList = getOrCreateConversation(conversationId);
+        } finally {
+            lock.unlock();
+        }
         return messageList.stream()
                 .skip(Math.max(0, messageList.size() - lastN))  // 最后 N 条：跳过 总数-N 条消息
                 .toList();
@@ -65,28 +239,274 @@ public class InFileChatMemory implements ChatMemory {
 
     @Override
     public void clear(String conversationId) {
-        File file = getConversationFile(conversationId);
-        if (file.exists())
-            file.delete();
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            migrateFlat(conversationId);
+            deleteConversationFiles(conversationId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取会话的摘要文件 &lt;id&gt;.summary，文件损坏时视为没有摘要（下次刷新时重新生成）
+     */
+    @Override
+    public ConversationSummary loadSummary(String conversationId) {
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            migrateFlat(conversationId);
+            Path file = getSummaryFile(conversationId);
+            if (!Files.exists(file))
+                return ConversationSummary.EMPTY;
+            return ConversationSummary.decode(Files.readAllBytes(file));
+        } catch (IOException e) {
+            log.warn("读取会话摘要失败：{}", conversationId, e);
+            return ConversationSummary.EMPTY;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 提交摘要文件的整体替换，与会话的其它写入一样由写入器执行
+     */
+    @Override
+    public void saveSummary(String conversationId, ConversationSummary summary) {
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            migrateFlat(conversationId);
+            ensureShardDir(conversationId);
+            track(conversationId, writer.replace(conversationId, getSummaryFile(conversationId), ByteBuffer.wrap(summary.encode())));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 停止后台压缩并把仍在队列中的会话压缩完，然后等待写入器写完队列中的写入
+     */
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compactPending();
+        }
+        writer.close();
+    }
+
+    /**
+     * 同一会话总是映射到同一把锁
+     */
+    private ReentrantLock lockFor(String conversationId) {
+        return locks[Math.floorMod(conversationId.hashCode(), locks.length)];
+    }
+
+    /**
+     * 记录会话最后一次提交的写入，需持有会话锁
+     */
+    private CompletableFuture<Void> track(String conversationId, CompletableFuture<Void> written) {
+        lastWrites.put(conversationId, written);
+        written.whenComplete((v, e) -> lastWrites.remove(conversationId, written));
+        return written;
+    }
+
+    /**
+     * 等待会话已提交的写入全部完成，需持有会话锁
+     *
+     * @return 其中是否有写入失败（磁盘上的文件可能与内存中的状态不一致）
+     */
+    private boolean awaitWrites(String conversationId) {
+        CompletableFuture<Void> last = lastWrites.get(conversationId);
+        if (last != null) {
+            try {
+                last.join();
+            } catch (CompletionException | CancellationException ignored) {
+                // 失败已由写入器记录到 failedWrites
+            }
+        }
+        return failedWrites.remove(conversationId);
+    }
+
+    /**
+     * 非 ASYNC 模式下 add 在释放会话锁后等待写入落盘（失败已由写入器记录日志）
+     */
+    private void awaitDurable(CompletableFuture<Void> written) {
+        if (durability == Durability.ASYNC || written == null)
+            return;
+        try {
+            written.join();
+        } catch (CompletionException | CancellationException ignored) {
+        }
     }
 
     /**
      * 每个会话文件单独保存，根据会话id获取相应的会话文件
      */
     private File getConversationFile(String conversationId) {
-        return new File(BASE_DIR, conversationId + ".kryo");
+        return shardDir(conversationId).resolve(conversationId + ".kryo").toFile();
+    }
+
+    private Path getSummaryFile(String conversationId) {
+        return shardDir(conversationId).resolve(conversationId + ".summary");
+    }
+
+    // ------------------------------ 目录布局与清理 ------------------------------
+
+    Path baseDir() {
+        return Path.of(BASE_DIR);
+    }
+
+    /**
+     * 会话文件所在的分片目录：BASE_DIR/ab/cd，ab、cd 取会话 id 的 CRC32 高两个字节
+     */
+    Path shardDir(String conversationId) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(conversationId.getBytes(StandardCharsets.UTF_8));
+        long hash = crc32.getValue();
+        return Path.of(BASE_DIR, HEX.toHexDigits((byte) (hash >>> 24)), HEX.toHexDigits((byte) (hash >>> 16)));
+    }
+
+    /**
+     * 写入前确保分片目录存在
+     */
+    private void ensureShardDir(String conversationId) {
+        Path dir = shardDir(conversationId);
+        if (shardDirs.contains(dir))
+            return;
+        dir.toFile().mkdirs();
+        shardDirs.add(dir);
+    }
+
+    /**
+     * 从文件名解析会话 id，不是会话文件（快照、日志、索引）时返回 null
+     */
+    static String conversationIdOf(String fileName) {
+        for (String suffix : CONVERSATION_SUFFIXES) {
+            if (fileName.endsWith(suffix) && fileName.length() > suffix.length())
+                return fileName.substring(0, fileName.length() - suffix.length());
+        }
+        return null;
+    }
+
+    private boolean hasFlatFiles() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir(), this::isFlatConversationFile)) {
+            return stream.iterator().hasNext();
+        } catch (IOException e) {
+            log.warn("检查对话记忆目录布局失败：{}", BASE_DIR, e);
+            return true;
+        }
+    }
+
+    private boolean isFlatConversationFile(Path path) {
+        return Files.isRegularFile(path) && conversationIdOf(path.getFileName().toString()) != null;
+    }
+
+    /**
+     * 把单个会话的平铺布局文件移动到分片目录，需持有会话锁
+     *
+     * @return 移动的文件数
+     */
+    private int migrateFlat(String conversationId) {
+        if (!flatLayout)
+            return 0;
+        int moved = 0;
+        for (String suffix : CONVERSATION_SUFFIXES) {
+            Path flat = Path.of(BASE_DIR, conversationId + suffix);
+            if (!Files.exists(flat))
+                continue;
+            ensureShardDir(conversationId);
+            try {
+                Files.move(flat, shardDir(conversationId).resolve(conversationId + suffix), StandardCopyOption.ATOMIC_MOVE);
+                moved++;
+            } catch (FileAlreadyExistsException e) {
+                log.warn("会话 {} 的分片文件已存在，保留平铺文件 {} 不迁移", conversationId, flat.getFileName());
+            } catch (IOException e) {
+                log.error("迁移会话文件失败：{}", flat, e);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * 把旧的平铺布局整体迁移到分片目录
+     *
+     * @return 迁移的文件数
+     */
+    int migrateFlatLayout() {
+        if (!flatLayout)
+            return 0;
+        int moved = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir(), this::isFlatConversationFile)) {
+            for (Path file : stream) {
+                String conversationId = conversationIdOf(file.getFileName().toString());
+                ReentrantLock lock = lockFor(conversationId);
+                lock.lock();
+                try {
+                    moved += migrateFlat(conversationId);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            log.error("迁移对话记忆目录失败：{}", BASE_DIR, e);
+            return moved;
+        }
+        flatLayout = hasFlatFiles();
+        log.info("对话记忆目录已迁移为分片布局，共移动 {} 个文件", moved);
+        return moved;
+    }
+
+    /**
+     * 会话全部文件的最后修改时间早于 cutoff 时删除该会话；持有会话锁重新检查，避免删除刚被写入的会话
+     *
+     * @return 是否已删除
+     */
+    boolean expireIfIdle(String conversationId, Instant cutoff) {
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            awaitWrites(conversationId);
+            long lastModified = 0;
+            for (String suffix : CONVERSATION_SUFFIXES)
+                lastModified = Math.max(lastModified, shardDir(conversationId).resolve(conversationId + suffix).toFile().lastModified());
+            if (lastModified == 0 || lastModified >= cutoff.toEpochMilli())
+                return false;
+            deleteConversationFiles(conversationId);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除会话的全部文件并释放内存中的状态，需持有会话锁
+     */
+    private void deleteConversationFiles(String conversationId) {
+        awaitWrites(conversationId);
+        for (String suffix : CONVERSATION_SUFFIXES)
+            shardDir(conversationId).resolve(conversationId + suffix).toFile().delete();
+        logStates.remove(conversationId);
+        pendingCompaction.remove(conversationId);
     }
 
     /**
-     * 获取/创建会话消息列表
+     * 获取/创建会话消息列表，需持有会话锁
      */
     private List<Message> getOrCreateConversation(String conversationId) {
         File file = getConversationFile(conversationId);  // 得到会话文件
         List<Message> messages = new ArrayList<>();
         if (file.exists()) {
-            // try-with-resources 语法，要求资源对象实现了 AutoCloseable 接口，在使用完后自动关闭，无需手动调用 close()，防止资源泄露
-            try (Input input = new Input(new FileInputStream(file))) {
-                messages = kryo.readObject(input, ArrayList.class);  // 反序列化，从文件中读取对象
+            try {
+                messages = new ArrayList<>(codec.decode(Files.readAllBytes(file.toPath())));  // 反序列化，从文件中读取对象
             } catch (KryoException ke) {
                 // 文件可能已损坏或不是 Kryo 格式，备份并返回空的会话
                 System.err.println("Kryo deserialization error for conversation " + conversationId + ": " + ke.getMessage());
@@ -110,42 +530,327 @@ public class InFileChatMemory implements ChatMemory {
     }
 
     /**
-     * 保存会话消息列表
+     * 提交会话消息列表的保存（由写入器写入临时文件后原子移动，避免写入一半的文件），需持有会话锁
      */
-    private void saveConversation(String conversationId, List<Message> messages) {
-        File file = getConversationFile(conversationId);
-        // write to temp file first, then atomically move to target to avoid partial writes
-        File tmp = new File(file.getAbsolutePath() + ".tmp");
-        try (Output output = new Output(new FileOutputStream(tmp))) {
-            kryo.writeObject(output, messages);
-            output.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-            // cleanup tmp on failure
-            try {
-                if (tmp.exists()) tmp.delete();
-            } catch (Exception ignored) {
+    private CompletableFuture<Void> saveConversation(String conversationId, List<Message> messages) {
+        return track(conversationId, writer.replace(conversationId, getConversationFile(conversationId).toPath(),
+                ByteBuffer.wrap(codec.encode(messages))));
+    }
+
+    // ------------------------------ LOG 模式 ------------------------------
+
+    /**
+     * 压缩后每条记录包含的消息数：记录太大时读取最后 N 条需要多反序列化无关消息，太小则索引与帧开销变大
+     */
+    private static final int COMPACT_BLOCK_MESSAGES = 16;
+
+    /**
+     * 会话日志状态，内容与磁盘上的索引文件一致
+     */
+    private static final class LogState {
+
+        /**
+         * 是否已校验过磁盘上的日志与索引（截断撕裂尾部、转换旧快照、重建索引）
+         */
+        boolean validated;
+
+        /**
+         * 日志有效长度
+         */
+        long length;
+
+        /**
+         * 日志中的有效记录数
+         */
+        int records;
+
+        /**
+         * 上次压缩后的记录数
+         */
+        int compactedRecords;
+
+        /**
+         * 第 i 条记录的起始偏移
+         */
+        long[] offsets = new long[16];
+
+        /**
+         * 第 i 条记录中的消息数
+         */
+        int[] counts = new int[16];
+
+        void addRecord(long offset, int count) {
+            if (records == offsets.length) {
+                offsets = Arrays.copyOf(offsets, records * 2);
+                counts = Arrays.copyOf(counts, records * 2);
             }
-            return;
+            offsets[records] = offset;
+            counts[records] = count;
+            records++;
+        }
+
+        void reset() {
+            validated = false;
+            length = 0;
+            records = 0;
+            compactedRecords = 0;
         }
+    }
 
+    private LogState logState(String conversationId) {
+        return logStates.computeIfAbsent(conversationId, k -> new LogState());
+    }
+
+    private File getLogFile(String conversationId) {
+        return shardDir(conversationId).resolve(conversationId + ".log").toFile();
+    }
+
+    private File getIndexFile(String conversationId) {
+        return shardDir(conversationId).resolve(conversationId + ".idx").toFile();
+    }
+
+    /**
+     * 追加一条记录，只写入本次新增的消息；序列化在加锁前完成
+     * <p>
+     * 持有会话锁时按提交顺序预留记录的偏移并提交给写入器（保证同一会话的记录按序写入），释放锁后按持久化级别等待写入完成。
+     * 写入器先写日志再写索引：两次写入之间崩溃时索引缺少最后一项，下次校验发现不一致后重建
+     */
+    private void appendToLog(String conversationId, List<Message> messages) {
+        if (messages.isEmpty())
+            return;
+        ByteBuffer record = ConversationLog.frame(codec.encode(messages));
+        int recordBytes = record.remaining();
+        CompletableFuture<Void> written;
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
         try {
-            Path tmpPath = tmp.toPath();
-            Path targetPath = file.toPath();
+            // 状态需在持有锁后获取：过期清理会移除会话状态
+            LogState state = logState(conversationId);
             try {
-                Files.move(tmpPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-            } catch (IOException atomicEx) {
-                // Fallback without ATOMIC_MOVE if not supported
-                Files.move(tmpPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                migrateFlat(conversationId);
+                ensureShardDir(conversationId);
+                ensureValid(conversationId, state);
+                long offset = state.length;
+                written = track(conversationId, writer.append(conversationId, getLogFile(conversationId).toPath(), record,
+                        getIndexFile(conversationId).toPath(), ConversationLog.indexEntry(offset, messages.size())));
+                // 写入失败时由写入器记录到 failedWrites，下次访问时重新校验
+                state.addRecord(offset, messages.size());
+                state.length = offset + recordBytes;
+            } catch (IOException e) {
+                log.error("追加会话日志失败：{}", conversationId, e);
+                // 写入结果未知，下次访问时重新校验
+                state.validated = false;
+                return;
+            }
+            if (state.records - state.compactedRecords > compactThreshold)
+                pendingCompaction.add(conversationId);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(written);
+    }
+
+    /**
+     * 读取最后 lastN 条消息，需持有会话锁
+     */
+    private List<Message> readFromLog(String conversationId, int lastN) {
+        try {
+            return readTail(conversationId, logState(conversationId), lastN);
+        } catch (IOException e) {
+            log.error("读取会话日志失败：{}", conversationId, e);
+            logState(conversationId).validated = false;
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * 借助索引从末尾向前累加消息数，只读取并反序列化包含最后 lastN 条消息的记录，需持有会话锁
+     */
+    private List<Message> readTail(String conversationId, LogState state, int lastN) throws IOException {
+        ensureValid(conversationId, state);
+        if (awaitWrites(conversationId)) {
+            // 尚未完成的写入中有失败的，重新校验
+            state.validated = false;
+            ensureValid(conversationId, state);
+        }
+        if (state.records == 0 || lastN <= 0)
+            return new ArrayList<>();
+        int first = state.records - 1;
+        long covered = state.counts[first];
+        while (first > 0 && covered < lastN)
+            covered += state.counts[--first];
+
+        List<Message> messages = new ArrayList<>((int) Math.min(covered, Integer.MAX_VALUE - 8));
+        try (FileChannel channel = FileChannel.open(getLogFile(conversationId).toPath(), StandardOpenOption.READ)) {
+            for (byte[] payload : ConversationLog.read(channel, state.offsets[first], state.length))
+                messages.addAll(codec.decode(payload));
+        }
+        return messages.size() > lastN
+                ? new ArrayList<>(messages.subList(messages.size() - lastN, messages.size()))
+                : messages;
+    }
+
+    /**
+     * 首次访问会话时校验日志与索引，需持有会话锁
+     * <p>
+     * 1. 日志不存在：有旧的 .kryo 快照则转换为日志，否则为空会话；
+     * 2. 索引与日志一致（最后一个索引项指向的记录校验通过且恰好结束于日志末尾）：只加载索引，不读取日志内容；
+     * 3. 否则全量扫描日志，截断撕裂尾部并重建索引
+     */
+    private void ensureValid(String conversationId, LogState state) throws IOException {
+        if (failedWrites.contains(conversationId))
+            state.validated = false;  // 有写入失败，磁盘上的日志可能与状态不一致
+        if (state.validated)
+            return;
+        awaitWrites(conversationId);
+        state.reset();
+        Path logPath = getLogFile(conversationId).toPath();
+        if (!Files.exists(logPath)) {
+            Files.deleteIfExists(getIndexFile(conversationId).toPath());
+            File snapshot = getConversationFile(conversationId);
+            if (snapshot.exists()) {
+                List<Message> messages = readSnapshot(conversationId, snapshot);
+                if (!messages.isEmpty())
+                    rewriteLog(conversationId, state, messages);
+                snapshot.delete();
+                log.info("会话 {} 已从快照转换为追加日志（{} 条消息）", conversationId, messages.size());
+            }
+            state.validated = true;
+            return;
+        }
+        if (!loadIndex(conversationId, state))
+            rebuildIndex(conversationId, state);
+        state.validated = true;
+    }
+
+    /**
+     * 加载索引并检查与日志是否一致
+     */
+    private boolean loadIndex(String conversationId, LogState state) throws IOException {
+        Path indexPath = getIndexFile(conversationId).toPath();
+        if (!Files.exists(indexPath))
+            return false;
+        byte[] bytes = Files.readAllBytes(indexPath);
+        if (bytes.length % ConversationLog.INDEX_ENTRY_BYTES != 0)
+            return false;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long previous = -1;
+        while (buffer.hasRemaining()) {
+            long offset = buffer.getLong();
+            int count = buffer.getInt();
+            // 偏移必须从 0 开始严格递增
+            if (offset <= previous || (previous < 0 && offset != 0) || count < 0) {
+                state.reset();
+                return false;
             }
+            state.addRecord(offset, count);
+            previous = offset;
+        }
+        try (FileChannel channel = FileChannel.open(getLogFile(conversationId).toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            boolean consistent = state.records == 0
+                    ? size == 0
+                    : ConversationLog.endsWithRecordAt(channel, state.offsets[state.records - 1], size);
+            if (!consistent) {
+                state.reset();
+                return false;
+            }
+            state.length = size;
+        }
+        return true;
+    }
+
+    /**
+     * 全量扫描日志：截断撕裂尾部并重建索引
+     */
+    private void rebuildIndex(String conversationId, LogState state) throws IOException {
+        Path logPath = getLogFile(conversationId).toPath();
+        ConversationLog.ScanResult scanResult = ConversationLog.scan(logPath);
+        if (scanResult.tornTail()) {
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                channel.truncate(scanResult.validLength());
+            }
+            log.warn("会话日志 {} 末尾存在残缺记录，已截断到 {} 字节", conversationId, scanResult.validLength());
+        }
+        state.reset();
+        for (int i = 0; i < scanResult.payloads().size(); i++)
+            state.addRecord(scanResult.offsets().get(i), codec.decode(scanResult.payloads().get(i)).size());
+        state.length = scanResult.validLength();
+        writeIndex(conversationId, state);
+        log.info("会话日志 {} 的索引已重建（{} 条记录）", conversationId, state.records);
+    }
+
+    /**
+     * 按 state 整体重写索引文件（临时文件 + 原子移动）
+     */
+    private void writeIndex(String conversationId, LogState state) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(state.records * ConversationLog.INDEX_ENTRY_BYTES);
+        for (int i = 0; i < state.records; i++)
+            buffer.putLong(state.offsets[i]).putInt(state.counts[i]);
+        buffer.flip();
+        GroupCommitWriter.replaceFile(getIndexFile(conversationId).toPath(), buffer, true);
+    }
+
+    /**
+     * 读取旧的快照文件，格式与 SNAPSHOT 模式相同；无法读取时与 SNAPSHOT 模式一样备份为 .corrupt 文件
+     */
+    private List<Message> readSnapshot(String conversationId, File snapshot) {
+        try {
+            return codec.decode(Files.readAllBytes(snapshot.toPath()));
         } catch (Exception e) {
-            // If move fails, attempt simple rename as last resort
+            File bad = new File(snapshot.getAbsolutePath() + ".corrupt." + System.currentTimeMillis());
+            snapshot.renameTo(bad);
+            log.error("读取会话快照失败，已备份到 {}，按空会话处理：{}", bad.getName(), conversationId, e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * 把消息列表按每 COMPACT_BLOCK_MESSAGES 条一条记录写成新日志，并重写索引
+     */
+    private void rewriteLog(String conversationId, LogState state, List<Message> messages) throws IOException {
+        ensureShardDir(conversationId);
+        List<ByteBuffer> records = new ArrayList<>();
+        state.reset();
+        long offset = 0;
+        for (int from = 0; from < messages.size(); from += COMPACT_BLOCK_MESSAGES) {
+            List<Message> block = messages.subList(from, Math.min(from + COMPACT_BLOCK_MESSAGES, messages.size()));
+            ByteBuffer record = ConversationLog.frame(codec.encode(block));
+            state.addRecord(offset, block.size());
+            offset += record.remaining();
+            records.add(record);
+        }
+        ByteBuffer content = ByteBuffer.allocate(Math.toIntExact(offset));
+        records.forEach(content::put);
+        GroupCommitWriter.replaceFile(getLogFile(conversationId).toPath(), content.flip(), true);
+        writeIndex(conversationId, state);
+        state.length = offset;
+        state.compactedRecords = state.records;
+        state.validated = true;
+    }
+
+    /**
+     * 后台压缩：把自上次压缩后新增记录过多的会话日志合并为每 COMPACT_BLOCK_MESSAGES 条消息一条记录
+     */
+    private void compactPending() {
+        for (String conversationId : pendingCompaction) {
+            pendingCompaction.remove(conversationId);
+            ReentrantLock lock = lockFor(conversationId);
+            lock.lock();
             try {
-                if (!tmp.renameTo(file)) {
-                    throw new IOException("Failed to move temp conversation file to target");
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
+                if (!getLogFile(conversationId).exists())
+                    continue;
+                LogState state = logState(conversationId);
+                int before = state.records;
+                List<Message> messages = readTail(conversationId, state, Integer.MAX_VALUE);
+                rewriteLog(conversationId, state, messages);
+                log.debug("会话日志 {} 已压缩：{} 条记录 -> {} 条", conversationId, before, state.records);
+            } catch (Exception e) {
+                log.error("压缩会话日志失败：{}", conversationId, e);
+                // 下次访问时重新校验
+                logStates.remove(conversationId);
+            } finally {
+                lock.unlock();
             }
         }
     }
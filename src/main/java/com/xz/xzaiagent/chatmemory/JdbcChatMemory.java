@@ -0,0 +1,313 @@
+package com.xz.xzaiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * 基于嵌入式数据库（默认 H2 文件库）的对话记忆，会话数量很多、每个会话一组文件难以管理时使用
+ * <p>
+ * 每条消息一行，主键 (conversation_id, seq) 即为索引，seq 在会话内从 0 连续递增；
+ * chat_memory_conversation 记录每个会话的下一个 seq，读取最后 N 条时先查出 next_seq，再在主键上做 seq >= next_seq - N 的范围查询。
+ * add 的多条消息在一个事务中批量插入。消息内容用 MessageCodec 编码，与文件存储一样保留元数据、工具调用等字段
+ * <p>
+ * 会话摘要（ConversationSummarizer 生成）保存在 chat_memory_summary 中，随会话一起清除
+ * <p>
+ * 同一会话的读写由分段锁串行化（与 InFileChatMemory 相同），数据源由本对象持有，关闭时一并关闭
+ */
+@Slf4j
+public class JdbcChatMemory implements ChatMemory, ConversationSummaryStore, Closeable {
+
+    private static final List<String> SCHEMA = List.of("""
+            CREATE TABLE IF NOT EXISTS chat_memory_message (
+                conversation_id VARCHAR(255) NOT NULL,
+                seq             BIGINT       NOT NULL,
+                message_type    VARCHAR(16)  NOT NULL,
+                payload         VARBINARY    NOT NULL,
+                PRIMARY KEY (conversation_id, seq)
+            )""", """
+            CREATE TABLE IF NOT EXISTS chat_memory_conversation (
+                conversation_id VARCHAR(255) NOT NULL PRIMARY KEY,
+                next_seq        BIGINT       NOT NULL,
+                updated_at      TIMESTAMP    NOT NULL
+            )""", """
+            CREATE TABLE IF NOT EXISTS chat_memory_summary (
+                conversation_id     VARCHAR(255) NOT NULL PRIMARY KEY,
+                summary             CLOB         NOT NULL,
+                anchor              BIGINT       NOT NULL,
+                summarized_messages BIGINT       NOT NULL,
+                updated_at          TIMESTAMP    NOT NULL
+            )""");
+
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO chat_memory_message (conversation_id, seq, message_type, payload) VALUES (?, ?, ?, ?)";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final DataSource dataSource;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final MessageCodec codec;
+
+    /**
+     * 批量插入时每批的行数
+     */
+    private final int batchSize;
+
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * 一行消息
+     */
+    private record Row(String conversationId, long seq, String messageType, byte[] payload) {
+    }
+
+    /**
+     * @param dataSource 数据源（由本对象持有，关闭时一并关闭）
+     * @param codec      消息编解码器
+     * @param batchSize  批量插入时每批的行数
+     */
+    public JdbcChatMemory(DataSource dataSource, MessageCodec codec, int batchSize) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.codec = codec;
+        this.batchSize = Math.max(1, batchSize);
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+        SCHEMA.forEach(jdbcTemplate::execute);
+    }
+
+    /**
+     * 在一个事务中批量插入本次的消息，并更新会话的 next_seq；失败时抛出异常（CachingChatMemory 会保留消息稍后重试）
+     */
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        if (messages.isEmpty())
+            return;
+        // 编码在加锁前完成
+        List<byte[]> payloads = messages.stream().map(message -> codec.encode(List.of(message))).toList();
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                long first = nextSeq(conversationId);
+                List<Row> rows = new ArrayList<>(messages.size());
+                for (int i = 0; i < messages.size(); i++)
+                    rows.add(new Row(conversationId, first + i, messages.get(i).getMessageType().name(), payloads.get(i)));
+                insertRows(rows);
+                updateNextSeq(conversationId, first, first + messages.size());
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> get(String conversationId, int lastN) {
+        if (lastN <= 0)
+            return new ArrayList<>();
+        List<byte[]> payloads;
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            long next = nextSeq(conversationId);
+            if (next == 0)
+                return new ArrayList<>();
+            payloads = jdbcTemplate.query(
+                    "SELECT payload FROM chat_memory_message WHERE conversation_id = ? AND seq >= ? ORDER BY seq",
+                    (rs, rowNum) -> rs.getBytes(1), conversationId, Math.max(0, next - lastN));
+        } finally {
+            lock.unlock();
+        }
+        // 解码在释放锁后进行
+        List<Message> messages = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads)
+            messages.addAll(codec.decode(payload));
+        return messages;
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.update("DELETE FROM chat_memory_message WHERE conversation_id = ?", conversationId);
+                jdbcTemplate.update("DELETE FROM chat_memory_conversation WHERE conversation_id = ?", conversationId);
+                jdbcTemplate.update("DELETE FROM chat_memory_summary WHERE conversation_id = ?", conversationId);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ConversationSummary loadSummary(String conversationId) {
+        List<ConversationSummary> summaries = jdbcTemplate.query(
+                "SELECT summary, anchor, summarized_messages FROM chat_memory_summary WHERE conversation_id = ?",
+                (rs, rowNum) -> new ConversationSummary(rs.getString(1), rs.getLong(2), rs.getLong(3)), conversationId);
+        return summaries.isEmpty() ? ConversationSummary.EMPTY : summaries.get(0);
+    }
+
+    @Override
+    public void saveSummary(String conversationId, ConversationSummary summary) {
+        ReentrantLock lock = lockFor(conversationId);
+        lock.lock();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                int updated = jdbcTemplate.update("UPDATE chat_memory_summary SET summary = ?, anchor = ?, summarized_messages = ?, updated_at = CURRENT_TIMESTAMP WHERE conversation_id = ?",
+                        summary.text(), summary.anchor(), summary.summarizedMessages(), conversationId);
+                if (updated == 0)
+                    jdbcTemplate.update("INSERT INTO chat_memory_summary (conversation_id, summary, anchor, summarized_messages, updated_at) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP)",
+                            conversationId, summary.text(), summary.anchor(), summary.summarizedMessages());
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从文件存储的目录批量导入会话：平铺与分片布局下的 .kryo 快照和 .log 日志（同时存在时以日志为准，摘要不导入、之后重新生成），
+     * 数据库中已存在的会话跳过，因此可以重复执行。应在对外提供服务前调用
+     *
+     * @return 导入的会话数
+     */
+    public int importFrom(Path dir) throws IOException {
+        if (!Files.isDirectory(dir))
+            return 0;
+        Map<String, Path> files = new LinkedHashMap<>();
+        try (Stream<Path> paths = Files.walk(dir, 3)) {
+            paths.filter(Files::isRegularFile).forEach(file -> {
+                String fileName = file.getFileName().toString();
+                String conversationId = InFileChatMemory.conversationIdOf(fileName);
+                if (conversationId == null || fileName.endsWith(".idx") || fileName.endsWith(".summary"))
+                    return;
+                if (fileName.endsWith(".log") || !files.containsKey(conversationId))
+                    files.put(conversationId, file);
+            });
+        }
+
+        long start = System.nanoTime();
+        int imported = 0;
+        int skipped = 0;
+        List<Row> rows = new ArrayList<>();
+        Map<String, Long> conversations = new LinkedHashMap<>();
+        for (Map.Entry<String, Path> entry : files.entrySet()) {
+            String conversationId = entry.getKey();
+            if (nextSeq(conversationId) > 0) {
+                skipped++;
+                continue;
+            }
+            List<Message> messages;
+            try {
+                messages = readConversationFile(entry.getValue());
+            } catch (Exception e) {
+                log.warn("导入会话文件失败，跳过：{}", entry.getValue(), e);
+                continue;
+            }
+            if (messages.isEmpty())
+                continue;
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                rows.add(new Row(conversationId, i, message.getMessageType().name(), codec.encode(List.of(message))));
+            }
+            conversations.put(conversationId, (long) messages.size());
+            imported++;
+            // 攒够一批后在一个事务中写入，会话不会被拆到两个事务中
+            if (rows.size() >= batchSize)
+                flushImport(rows, conversations);
+        }
+        flushImport(rows, conversations);
+        log.info("已从 {} 导入 {} 个会话（跳过已存在的 {} 个），耗时 {} ms",
+                dir, imported, skipped, (System.nanoTime() - start) / 1_000_000);
+        return imported;
+    }
+
+    /**
+     * 关闭数据源
+     */
+    @Override
+    public void close() throws IOException {
+        if (dataSource instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                throw new IOException("关闭对话记忆数据源失败", e);
+            }
+        }
+    }
+
+    private ReentrantLock lockFor(String conversationId) {
+        return locks[Math.floorMod(conversationId.hashCode(), locks.length)];
+    }
+
+    /**
+     * 会话的下一个 seq，会话不存在时为 0
+     */
+    private long nextSeq(String conversationId) {
+        List<Long> next = jdbcTemplate.queryForList(
+                "SELECT next_seq FROM chat_memory_conversation WHERE conversation_id = ?", Long.class, conversationId);
+        return next.isEmpty() ? 0 : next.get(0);
+    }
+
+    private void updateNextSeq(String conversationId, long previous, long next) {
+        if (previous == 0) {
+            jdbcTemplate.update("INSERT INTO chat_memory_conversation (conversation_id, next_seq, updated_at) VALUES (?, ?, CURRENT_TIMESTAMP)",
+                    conversationId, next);
+        } else {
+            jdbcTemplate.update("UPDATE chat_memory_conversation SET next_seq = ?, updated_at = CURRENT_TIMESTAMP WHERE conversation_id = ?",
+                    next, conversationId);
+        }
+    }
+
+    private void insertRows(List<Row> rows) {
+        jdbcTemplate.batchUpdate(INSERT_MESSAGE, rows, batchSize, (ps, row) -> {
+            ps.setString(1, row.conversationId());
+            ps.setLong(2, row.seq());
+            ps.setString(3, row.messageType());
+            ps.setBytes(4, row.payload());
+        });
+    }
+
+    private void flushImport(List<Row> rows, Map<String, Long> conversations) {
+        if (conversations.isEmpty())
+            return;
+        transactionTemplate.executeWithoutResult(status -> {
+            insertRows(rows);
+            conversations.forEach((conversationId, next) -> updateNextSeq(conversationId, 0, next));
+        });
+        rows.clear();
+        conversations.clear();
+    }
+
+    /**
+     * 读取文件存储的快照或日志（日志末尾的残缺记录忽略）
+     */
+    private List<Message> readConversationFile(Path file) throws IOException {
+        if (!file.getFileName().toString().endsWith(".log"))
+            return codec.decode(Files.readAllBytes(file));
+        List<Message> messages = new ArrayList<>();
+        for (byte[] payload : ConversationLog.scan(file).payloads())
+            messages.addAll(codec.decode(payload));
+        return messages;
+    }
+}
@@ -0,0 +1,338 @@
+package com.xz.xzaiagent.chatmemory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.springframework.ai.chat.messages.AbstractMessage;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.model.Media;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 会话文件（快照与日志记录）的消息编解码器
+ * <p>
+ * 新格式：
+ * <pre>
+ * +----------+---------+---------+------------------------------------+
+ * | 标记 0x00 | 版本 1B  | 标志 1B  | 正文（标志位 FLAG_DEFLATE 时经过压缩） |
+ * +----------+---------+---------+------------------------------------+
+ * </pre>
+ * 正文为消息数 + 逐条消息，四种 Spring AI 消息类型以固定 id 注册并使用自定义序列化器，只写文本、元数据、工具调用等字段，
+ * 不写类名；元数据中由消息类型决定的 messageType 不重复写入。正文超过 compressThreshold 字节时整体压缩，压缩后不变小则保留原文
+ * <p>
+ * 旧格式为 kryo.writeObject(ArrayList) 的结果，首字节是“列表长度 + 1”的变长编码，恒不为 0，据此与新格式区分，仍可读取
+ */
+public final class MessageCodec {
+
+    /**
+     * 新格式的首字节
+     */
+    static final byte FORMAT_MARKER = 0;
+
+    /**
+     * 当前格式版本，修改正文结构或注册 id 时递增，旧版本仍需可读
+     */
+    static final byte VERSION = 1;
+
+    static final int HEADER_BYTES = 3;
+
+    /**
+     * 正文经过 Deflater 压缩
+     */
+    static final int FLAG_DEFLATE = 1;
+
+    private final boolean compression;
+
+    private final int compressThreshold;
+
+    /**
+     * @param compression       是否压缩正文
+     * @param compressThreshold 正文超过该字节数时才压缩（短记录压缩收益小于开销）
+     */
+    public MessageCodec(boolean compression, int compressThreshold) {
+        this.compression = compression;
+        this.compressThreshold = Math.max(0, compressThreshold);
+    }
+
+    /**
+     * 编码为当前版本的新格式
+     */
+    public byte[] encode(List<Message> messages) {
+        Output output = new Output(256, -1);
+        output.writeByte(FORMAT_MARKER);
+        output.writeByte(VERSION);
+        output.writeByte(0);
+        Kryo kryo = KRYO_POOL.obtain();
+        try {
+            output.writeVarInt(messages.size(), true);
+            for (Message message : messages)
+                kryo.writeClassAndObject(output, message);
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+        int bodyLength = output.position() - HEADER_BYTES;
+        if (!compression || bodyLength <= compressThreshold)
+            return output.toBytes();
+
+        byte[] compressed = deflate(output.getBuffer(), HEADER_BYTES, bodyLength);
+        if (compressed.length >= bodyLength)
+            return output.toBytes();
+        byte[] bytes = new byte[HEADER_BYTES + compressed.length];
+        bytes[0] = FORMAT_MARKER;
+        bytes[1] = VERSION;
+        bytes[2] = FLAG_DEFLATE;
+        System.arraycopy(compressed, 0, bytes, HEADER_BYTES, compressed.length);
+        return bytes;
+    }
+
+    /**
+     * 解码新格式或旧格式，数据损坏时抛出 KryoException
+     */
+    @SuppressWarnings("unchecked")
+    public List<Message> decode(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != FORMAT_MARKER) {
+            Kryo kryo = LEGACY_KRYO_POOL.obtain();
+            try (Input input = new Input(bytes)) {
+                return kryo.readObject(input, ArrayList.class);
+            } finally {
+                LEGACY_KRYO_POOL.free(kryo);
+            }
+        }
+        if (bytes.length < HEADER_BYTES)
+            throw new KryoException("会话数据头不完整");
+        if (bytes[1] != VERSION)
+            throw new KryoException("不支持的会话数据版本：" + bytes[1]);
+        int flags = bytes[2];
+        byte[] body = (flags & FLAG_DEFLATE) != 0
+                ? inflate(bytes, HEADER_BYTES, bytes.length - HEADER_BYTES)
+                : bytes;
+        Kryo kryo = KRYO_POOL.obtain();
+        try (Input input = new Input(body)) {
+            if (body == bytes)
+                input.setPosition(HEADER_BYTES);
+            int size = input.readVarInt(true);
+            List<Message> messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                messages.add((Message) kryo.readClassAndObject(input));
+            return messages;
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished())
+                out.write(chunk, 0, deflater.deflate(chunk));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new KryoException("会话数据压缩内容不完整");
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new KryoException("会话数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // ------------------------------ Kryo 配置 ------------------------------
+
+    /**
+     * 新格式使用的 Kryo：消息类型与常见的元数据值类型以固定 id 注册（id 一经写入文件不可修改）；
+     * 元数据中出现未注册的类型时仍按类名写入，保证不会因为模型返回了新的元数据而无法保存
+     */
+    private static final Pool<Kryo> KRYO_POOL = new Pool<>(true, false, 32) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            kryo.setRegistrationRequired(false);
+            kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+            kryo.register(ArrayList.class, 20);
+            kryo.register(HashMap.class, 21);
+            kryo.register(LinkedHashMap.class, 22);
+            kryo.register(UserMessage.class, new UserMessageSerializer(), 30);
+            kryo.register(AssistantMessage.class, new AssistantMessageSerializer(), 31);
+            kryo.register(SystemMessage.class, new SystemMessageSerializer(), 32);
+            kryo.register(ToolResponseMessage.class, new ToolResponseMessageSerializer(), 33);
+            return kryo;
+        }
+    };
+
+    // Kryo 实例不是线程安全的，多个线程共享同一个实例会导致读到损坏的数据，因此使用线程安全的对象池，每次序列化时借用一个实例
+    // 池是类级别的：kryo 的行为应该在类级别上定义，而不是实例级别
+    private static final Pool<Kryo> LEGACY_KRYO_POOL = new Pool<>(true, false, 8) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            // 默认情况下，Kryo 要求先注册所有要序列化的类，否则报错。这行代码关闭了这个限制：即使没有预注册类也能序列化/反序列化。
+            kryo.setRegistrationRequired(false);  // 不强制要求注册类
+            // Kryo 默认有时不能创建没有无参构造器的对象，会抛异常。这行设置了一种“宽松”的策略，可以“跳过构造函数”创建对象，从而支持序列化像 JPA 实体等没有显式构造函数的类
+            kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());  // 设置标准的实例化策略
+            return kryo;
+        }
+    };
+
+    /**
+     * 写入元数据，跳过由消息类型决定的 messageType
+     */
+    private static void writeMetadata(Kryo kryo, Output output, Map<String, Object> metadata) {
+        int size = 0;
+        for (String key : metadata.keySet()) {
+            if (!AbstractMessage.MESSAGE_TYPE.equals(key))
+                size++;
+        }
+        output.writeVarInt(size, true);
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            if (AbstractMessage.MESSAGE_TYPE.equals(entry.getKey()))
+                continue;
+            output.writeString(entry.getKey());
+            kryo.writeClassAndObject(output, entry.getValue());
+        }
+    }
+
+    private static Map<String, Object> readMetadata(Kryo kryo, Input input) {
+        int size = input.readVarInt(true);
+        Map<String, Object> metadata = new HashMap<>(Math.max(4, size * 2));
+        for (int i = 0; i < size; i++)
+            metadata.put(input.readString(), kryo.readClassAndObject(input));
+        return metadata;
+    }
+
+    private static void writeMedia(Kryo kryo, Output output, List<Media> media) {
+        output.writeVarInt(media.size(), true);
+        for (Media item : media)
+            kryo.writeClassAndObject(output, item);
+    }
+
+    private static List<Media> readMedia(Kryo kryo, Input input) {
+        int size = input.readVarInt(true);
+        List<Media> media = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            media.add((Media) kryo.readClassAndObject(input));
+        return media;
+    }
+
+    private static final class UserMessageSerializer extends Serializer<UserMessage> {
+
+        @Override
+        public void write(Kryo kryo, Output output, UserMessage message) {
+            output.writeString(message.getText());
+            writeMetadata(kryo, output, message.getMetadata());
+            writeMedia(kryo, output, message.getMedia());
+        }
+
+        @Override
+        public UserMessage read(Kryo kryo, Input input, Class<? extends UserMessage> type) {
+            String text = input.readString();
+            Map<String, Object> metadata = readMetadata(kryo, input);
+            return new UserMessage(text, readMedia(kryo, input), metadata);
+        }
+    }
+
+    private static final class AssistantMessageSerializer extends Serializer<AssistantMessage> {
+
+        @Override
+        public void write(Kryo kryo, Output output, AssistantMessage message) {
+            output.writeString(message.getText());  // 只有工具调用时文本为 null
+            writeMetadata(kryo, output, message.getMetadata());
+            output.writeVarInt(message.getToolCalls().size(), true);
+            for (AssistantMessage.ToolCall toolCall : message.getToolCalls()) {
+                output.writeString(toolCall.id());
+                output.writeString(toolCall.type());
+                output.writeString(toolCall.name());
+                output.writeString(toolCall.arguments());
+            }
+            writeMedia(kryo, output, message.getMedia());
+        }
+
+        @Override
+        public AssistantMessage read(Kryo kryo, Input input, Class<? extends AssistantMessage> type) {
+            String text = input.readString();
+            Map<String, Object> metadata = readMetadata(kryo, input);
+            int size = input.readVarInt(true);
+            List<AssistantMessage.ToolCall> toolCalls = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                toolCalls.add(new AssistantMessage.ToolCall(input.readString(), input.readString(),
+                        input.readString(), input.readString()));
+            return new AssistantMessage(text, metadata, toolCalls, readMedia(kryo, input));
+        }
+    }
+
+    private static final class SystemMessageSerializer extends Serializer<SystemMessage> {
+
+        @Override
+        public void write(Kryo kryo, Output output, SystemMessage message) {
+            output.writeString(message.getText());
+            writeMetadata(kryo, output, message.getMetadata());
+        }
+
+        @Override
+        public SystemMessage read(Kryo kryo, Input input, Class<? extends SystemMessage> type) {
+            SystemMessage message = new SystemMessage(input.readString());
+            // SystemMessage 没有带元数据的构造器，元数据是可变的 HashMap
+            message.getMetadata().putAll(readMetadata(kryo, input));
+            return message;
+        }
+    }
+
+    private static final class ToolResponseMessageSerializer extends Serializer<ToolResponseMessage> {
+
+        @Override
+        public void write(Kryo kryo, Output output, ToolResponseMessage message) {
+            writeMetadata(kryo, output, message.getMetadata());
+            output.writeVarInt(message.getResponses().size(), true);
+            for (ToolResponseMessage.ToolResponse response : message.getResponses()) {
+                output.writeString(response.id());
+                output.writeString(response.name());
+                output.writeString(response.responseData());
+            }
+        }
+
+        @Override
+        public ToolResponseMessage read(Kryo kryo, Input input, Class<? extends ToolResponseMessage> type) {
+            Map<String, Object> metadata = readMetadata(kryo, input);
+            int size = input.readVarInt(true);
+            List<ToolResponseMessage.ToolResponse> responses = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                responses.add(new ToolResponseMessage.ToolResponse(input.readString(), input.readString(), input.readString()));
+            return new ToolResponseMessage(responses, metadata);
+        }
+    }
+}
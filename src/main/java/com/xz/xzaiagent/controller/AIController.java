@@ -2,12 +2,11 @@ package com.xz.xzaiagent.controller;
 
 import com.xz.xzaiagent.agent.ActiveAgentRegistry;
 import com.xz.xzaiagent.agent.LiteMind;
+import com.xz.xzaiagent.agent.LiteMindFactory;
 import com.xz.xzaiagent.app.LoveApp;
 import com.xz.xzaiagent.app.SimpleChat;
 import com.xz.xzaiagent.utils.IdUtil;
 import jakarta.annotation.Resource;
-import org.springframework.ai.chat.model.ChatModel;
-import org.springframework.ai.tool.ToolCallback;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.codec.ServerSentEvent;
@@ -29,9 +28,7 @@ public class AIController {
     @Resource
     private LoveApp loveApp;
     @Resource
-    private ToolCallback[] allTools;
-    @Resource
-    private ChatModel dashscopeChatModel;
+    private LiteMindFactory liteMindFactory;
 
     @Resource
     private SimpleChat simpleChat;
@@ -114,10 +111,10 @@ public class AIController {
         // forward chatId upstream so Agent uses it as conversation id
         SseEmitter sse = simpleChat.doChatByStream(message, finalChatId);
 
-        // send initial chatId info to client
+        // send initial chatId info to client (emitter may already be completed with a busy reply)
         try {
             sse.send("__CHAT_ID__:" + finalChatId);
-        } catch (IOException ignored) {
+        } catch (IOException | IllegalStateException ignored) {
         }
 
         // registry will be updated by SimpleChat when disposable is available
@@ -126,32 +123,91 @@ public class AIController {
 
     /**
      * SSE 流式调用 LiteMind（深度思考模式）
+     * <p>
+     * 步骤事件带 id，连接中断后客户端带 Last-Event-ID 请求头与同一 chatId 重新请求时接上仍在运行（或刚结束）的智能体，
+     * 只重放缺失的步骤，不会重新执行；EventSource 自动重连即满足该条件（客户端需在收到 [DONE] 前保持连接、不主动 close）。
+     * 第一个事件即带 id 的 chatId 握手，正常结束时最后一个事件为 [DONE]。
+     * <p>
+     * - 带 Last-Event-ID 但运行已无法续传（已过期）：回复提示并结束，不重新执行；
+     * - 同一 chatId 的运行仍在进行：提示词相同时接上该运行并从头重放，提示词不同时回复“仍在运行”，不丢弃也不覆盖正在进行的运行
      */
     @GetMapping("/chat/liteMind")
-    public SseEmitter doChatWithLiteMind(String message, String chatId) {
+    public SseEmitter doChatWithLiteMind(String message, String chatId,
+                                         @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
         String finalChatId = IdUtil.validate_or_generate_chatId(chatId);
 
+        if (lastEventId != null) {
+            SseEmitter resumed = activeAgentRegistry.resume(finalChatId, lastEventId);
+            if (resumed != null)
+                return resumed;
+            // Last-Event-ID 只来自断线重连：原运行的事件已不可取回，重新执行会重复调用工具，直接告知客户端
+            return noticeEmitter("连接中断期间该对话的运行已结束，无法续传，请重新发送消息");
+        }
+
+        // 该 chatId 的运行仍在进行：同一提示词（如刷新后重新请求）接上它并从头重放，不再启动第二个运行
+        SseEmitter running = activeAgentRegistry.attachRunning(finalChatId, message);
+        if (running != null)
+            return running;
+        if (activeAgentRegistry.isRunning(finalChatId))
+            return noticeEmitter("该对话仍在运行中，请等待当前任务结束或先终止后再发送新消息");
+
         // register placeholder so terminate can be called even before Agent registers
         activeAgentRegistry.register(finalChatId, null, null, null);
 
-        // create new LiteMind instance and start stream, forwarding chatId upstream
-        LiteMind liteMind = new LiteMind(allTools, dashscopeChatModel);
-        // inform agent of requested chatId for internal registration
-        liteMind.setRequestedChatId(finalChatId);
-        liteMind.setActiveAgentRegistry(activeAgentRegistry);
+        // create new LiteMind session on shared infrastructure and start stream, forwarding chatId upstream
+        // the chatId handshake is the run's first id'd event (sent by LiteMind), so clients can resume from the very start
+        LiteMind liteMind = liteMindFactory.create(finalChatId);
         SseEmitter sse = liteMind.runByStream(message);
 
-        // send initial chatId info to client
-        try {
-            sse.send("__CHAT_ID__:" + finalChatId);
-        } catch (IOException ignored) {
-        }
-
         // register actual agent entry (override placeholder)
         activeAgentRegistry.register(finalChatId, liteMind, sse, null);
         return sse;
     }
 
+    /**
+     * 响应式 SSE 流式调用 LLM（简单对话模式）：推送内容与 /chat/simple 相同
+     * <p>
+     * 返回 Flux 由框架异步写出，不为每个连接占用线程；客户端断开即取消模型流，仍可通过 /chat/terminate 终止
+     */
+    @GetMapping(value = "/chat/simple/flux", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<String>> doSimpleChatFlux(String message, String chatId) {
+        String finalChatId = IdUtil.validate_or_generate_chatId(chatId);
+        return Flux.concat(Flux.just(chatIdEvent(finalChatId)),
+                activeAgentRegistry.track(finalChatId, null, simpleChat.doChatByFlux(message, finalChatId)));
+    }
+
+    /**
+     * 响应式 SSE 流式调用 LiteMind（深度思考模式）：推送内容与 /chat/liteMind 相同
+     * <p>
+     * 智能体步骤仍在执行器中运行，结果以 Flux 写出；客户端断开后智能体在当前步骤结束时停止
+     */
+    @GetMapping(value = "/chat/liteMind/flux", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<String>> doChatWithLiteMindFlux(String message, String chatId) {
+        String finalChatId = IdUtil.validate_or_generate_chatId(chatId);
+        LiteMind liteMind = liteMindFactory.create(finalChatId);
+        return Flux.concat(Flux.just(chatIdEvent(finalChatId)),
+                activeAgentRegistry.track(finalChatId, liteMind, liteMind.runByFlux(message)));
+    }
+
+    /**
+     * 只发送一条提示和结束标记的连接
+     */
+    private static SseEmitter noticeEmitter(String notice) {
+        SseEmitter sse = new SseEmitter(0L);
+        try {
+            sse.send(notice);
+            sse.send("[DONE]");
+            sse.complete();
+        } catch (IOException | IllegalStateException e) {
+            sse.completeWithError(e);
+        }
+        return sse;
+    }
+
+    private static ServerSentEvent<String> chatIdEvent(String chatId) {
+        return ServerSentEvent.builder("__CHAT_ID__:" + chatId).build();
+    }
+
     /**
      * 外部终止接口：根据 chatId 终止正在运行的 Agent / SSE 流
      */
@@ -0,0 +1,29 @@
+package com.xz.xzaiagent.llm;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+/**
+ * 模型调用配置：在 DashScope 模型外包装一层，按类型注入的 ChatModel（含按参数名 dashscopeChatModel 注入的构造器参数）都使用该 Bean
+ */
+@Configuration
+public class ChatModelConfig {
+
+    /**
+     * 合并相同的进行中请求，关闭时直接使用 DashScope 模型
+     */
+    @Bean
+    @Primary
+    public ChatModel chatModel(@Qualifier("dashscopeChatModel") ChatModel dashscopeChatModel,
+                               @Value("${app.llm.coalesce.enabled:true}") boolean coalesce,
+                               MeterRegistry meterRegistry) {
+        if (!coalesce)
+            return dashscopeChatModel;
+        return new CoalescingChatModel(dashscopeChatModel, meterRegistry);
+    }
+}
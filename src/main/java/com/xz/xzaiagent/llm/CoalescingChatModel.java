@@ -0,0 +1,162 @@
+package com.xz.xzaiagent.llm;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.function.FunctionCallback;
+import org.springframework.ai.model.function.FunctionCallingOptions;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 合并相同的进行中请求（single-flight）：同一时刻多个完全相同的 Prompt（消息与选项都相同）只调用一次底层模型，结果共享给所有等待者
+ * <p>
+ * - call：第一个请求调用模型，其余相同请求等待同一个结果（包括异常）；
+ * - stream：第一个订阅者发起底层流，其余相同请求订阅同一个多播流并从头重放已收到的片段，所有订阅者都取消后底层流随之取消。
+ * 只合并“进行中”的请求，请求结束后即移除，不缓存结果
+ */
+@Slf4j
+public class CoalescingChatModel implements ChatModel {
+
+    private final ChatModel delegate;
+
+    private final Map<String, CompletableFuture<ChatResponse>> inFlightCalls = new ConcurrentHashMap<>();
+
+    private final Map<String, Flux<ChatResponse>> inFlightStreams = new ConcurrentHashMap<>();
+
+    private final Counter callLeaders;
+
+    private final Counter callDuplicates;
+
+    private final Counter streamLeaders;
+
+    private final Counter streamDuplicates;
+
+    public CoalescingChatModel(ChatModel delegate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.callLeaders = counter(meterRegistry, "call", "leader");
+        this.callDuplicates = counter(meterRegistry, "call", "duplicate");
+        this.streamLeaders = counter(meterRegistry, "stream", "leader");
+        this.streamDuplicates = counter(meterRegistry, "stream", "duplicate");
+        Gauge.builder("llm.coalesce.inflight", this, m -> m.inFlightCalls.size() + m.inFlightStreams.size())
+                .description("进行中的（已去重的）模型请求数")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public ChatResponse call(Prompt prompt) {
+        String key = key(prompt);
+        CompletableFuture<ChatResponse> mine = new CompletableFuture<>();
+        CompletableFuture<ChatResponse> existing = inFlightCalls.putIfAbsent(key, mine);
+        if (existing != null) {
+            callDuplicates.increment();
+            log.info("合并相同的进行中模型请求（call）");
+            return await(existing);
+        }
+        callLeaders.increment();
+        try {
+            ChatResponse response = delegate.call(prompt);
+            mine.complete(response);
+            return response;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightCalls.remove(key, mine);
+        }
+    }
+
+    @Override
+    public Flux<ChatResponse> stream(Prompt prompt) {
+        return Flux.defer(() -> {
+            String key = key(prompt);
+            AtomicReference<Flux<ChatResponse>> created = new AtomicReference<>();
+            Flux<ChatResponse> shared = inFlightStreams.computeIfAbsent(key, k -> {
+                AtomicReference<Flux<ChatResponse>> self = new AtomicReference<>();
+                // 底层流结束或被全部订阅者取消后移除；replay 让稍后加入的订阅者也能收到完整内容
+                Flux<ChatResponse> flux = delegate.stream(prompt)
+                        .doFinally(signal -> inFlightStreams.remove(k, self.get()))
+                        .replay()
+                        .refCount();
+                self.set(flux);
+                created.set(flux);
+                return flux;
+            });
+            if (created.get() == shared) {
+                streamLeaders.increment();
+            } else {
+                streamDuplicates.increment();
+                log.info("合并相同的进行中模型请求（stream）");
+            }
+            return shared;
+        });
+    }
+
+    @Override
+    public ChatOptions getDefaultOptions() {
+        return delegate.getDefaultOptions();
+    }
+
+    private static ChatResponse await(CompletableFuture<ChatResponse> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待相同的模型请求时被中断", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            if (e.getCause() instanceof Error error)
+                throw error;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * 请求的 key：选项 + 已注册的工具 + 工具上下文 + 全部消息（类型与内容）的摘要
+     * <p>
+     * 选项的 toString 不包含 @JsonIgnore 的 functionCallbacks 与 toolContext，需单独计入，
+     * 否则工具集或工具上下文（如所属会话）不同的请求会被错误合并
+     */
+    private static String key(Prompt prompt) {
+        StringBuilder text = new StringBuilder();
+        ChatOptions options = prompt.getOptions();
+        text.append(options).append('\u0000');
+        if (options instanceof FunctionCallingOptions functionCallingOptions) {
+            List<FunctionCallback> callbacks = functionCallingOptions.getFunctionCallbacks();
+            if (callbacks != null) {
+                for (FunctionCallback callback : callbacks)
+                    text.append(callback.getName()).append('\u0001');
+            }
+            text.append('\u0000').append(functionCallingOptions.getFunctions()).append('\u0000');
+            Map<String, Object> toolContext = functionCallingOptions.getToolContext();
+            // 按 key 排序，保证相同的工具上下文得到相同的摘要
+            text.append(toolContext == null ? null : new TreeMap<>(toolContext)).append('\u0000');
+        }
+        for (Message message : prompt.getInstructions())
+            text.append(message.getMessageType()).append('\u0001').append(message).append('\u0000');
+        return DigestUtil.sha256Hex(text.toString());
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String mode, String result) {
+        return Counter.builder("llm.coalesce.requests")
+                .description("模型请求数，duplicate 为被合并到进行中请求的重复请求")
+                .tag("mode", mode)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,11 @@
+package com.xz.xzaiagent.llm;
+
+/**
+ * 模型调用排队超时或队列已满，调用方应提示用户稍后重试
+ */
+public class LlmBusyException extends RuntimeException {
+
+    public LlmBusyException(String message) {
+        super(message);
+    }
+}
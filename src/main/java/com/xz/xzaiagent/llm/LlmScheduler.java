@@ -0,0 +1,277 @@
+package com.xz.xzaiagent.llm;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 模型调用调度器：限制同时进行的模型调用数，所有端点共享同一份 DashScope 配额
+ * <p>
+ * - 全局最多 maxConcurrent 个调用，每个 chatId 最多 perChatMaxConcurrent 个；
+ * - 按优先级分为两条通道：INTERACTIVE（简单对话、LoveApp 等单次调用）优先于 AGENT（多步智能体），
+ * AGENT 通道另有并发上限，保证长时间运行的智能体不会占满全部并发；
+ * - 无法立即执行的调用按通道排队（FIFO，同一 chatId 已达上限的等待者不阻塞后面的等待者），
+ * 超过通道的 maxWait 仍未轮到时以 LlmBusyException 失败，队列已满时立即失败。
+ * 按通道记录排队数、执行数、排队耗时与拒绝次数
+ */
+@Slf4j
+@Component
+public class LlmScheduler {
+
+    /**
+     * 优先级通道，按声明顺序优先调度
+     */
+    public enum Lane {
+        INTERACTIVE, AGENT
+    }
+
+    /**
+     * 一次调用占用的并发名额，release 可重复调用
+     */
+    public final class Permit {
+
+        private final Lane lane;
+
+        private final String chatId;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Lane lane, String chatId) {
+            this.lane = lane;
+            this.chatId = chatId;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true))
+                LlmScheduler.this.release(this);
+        }
+    }
+
+    private record LaneConfig(int maxConcurrent, Duration maxWait, int maxQueued) {
+    }
+
+    private record Waiter(String chatId, CompletableFuture<Permit> future, long enqueuedAt) {
+    }
+
+    private record Grant(Waiter waiter, Permit permit) {
+    }
+
+    private final boolean enabled;
+
+    private final int maxConcurrent;
+
+    private final int perChatMaxConcurrent;
+
+    private final Map<Lane, LaneConfig> laneConfigs = new EnumMap<>(Lane.class);
+
+    private final Map<Lane, ArrayDeque<Waiter>> queues = new EnumMap<>(Lane.class);
+
+    private final Map<Lane, Integer> laneActive = new EnumMap<>(Lane.class);
+
+    private final Map<String, Integer> chatActive = new HashMap<>();
+
+    private int active;
+
+    private final Map<Lane, Timer> waitTimers = new EnumMap<>(Lane.class);
+
+    private final Map<Lane, Counter> rejected = new EnumMap<>(Lane.class);
+
+    public LlmScheduler(@Value("${app.llm.scheduler.enabled:true}") boolean enabled,
+                        @Value("${app.llm.scheduler.maxConcurrent:16}") int maxConcurrent,
+                        @Value("${app.llm.scheduler.perChatMaxConcurrent:2}") int perChatMaxConcurrent,
+                        @Value("${app.llm.scheduler.interactive.maxConcurrent:16}") int interactiveMaxConcurrent,
+                        @Value("${app.llm.scheduler.interactive.maxWait:20s}") Duration interactiveMaxWait,
+                        @Value("${app.llm.scheduler.interactive.maxQueued:256}") int interactiveMaxQueued,
+                        @Value("${app.llm.scheduler.agent.maxConcurrent:10}") int agentMaxConcurrent,
+                        @Value("${app.llm.scheduler.agent.maxWait:120s}") Duration agentMaxWait,
+                        @Value("${app.llm.scheduler.agent.maxQueued:256}") int agentMaxQueued,
+                        MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.perChatMaxConcurrent = Math.max(1, perChatMaxConcurrent);
+        laneConfigs.put(Lane.INTERACTIVE, new LaneConfig(Math.max(1, interactiveMaxConcurrent), interactiveMaxWait, Math.max(0, interactiveMaxQueued)));
+        laneConfigs.put(Lane.AGENT, new LaneConfig(Math.max(1, agentMaxConcurrent), agentMaxWait, Math.max(0, agentMaxQueued)));
+
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new ArrayDeque<>());
+            laneActive.put(lane, 0);
+            String tag = lane.name().toLowerCase();
+            Gauge.builder("llm.scheduler.queued", this, s -> s.queued(lane))
+                    .description("排队等待的模型调用数")
+                    .tag("lane", tag)
+                    .register(meterRegistry);
+            Gauge.builder("llm.scheduler.active", this, s -> s.active(lane))
+                    .description("正在进行的模型调用数")
+                    .tag("lane", tag)
+                    .register(meterRegistry);
+            waitTimers.put(lane, Timer.builder("llm.scheduler.wait")
+                    .description("模型调用的排队耗时")
+                    .tag("lane", tag)
+                    .register(meterRegistry));
+            rejected.put(lane, Counter.builder("llm.scheduler.rejected")
+                    .description("排队超时或队列已满而失败的模型调用数")
+                    .tag("lane", tag)
+                    .register(meterRegistry));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 阻塞等待并发名额（同步调用使用）
+     *
+     * @param chatId 会话 id，为 null 时不受单会话上限限制
+     * @throws LlmBusyException 排队超时或队列已满
+     */
+    public Permit acquire(Lane lane, String chatId) {
+        CompletableFuture<Permit> future = enqueue(lane, chatId);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            abandon(future);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待模型调用名额时被中断", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * 异步等待并发名额（流式调用使用），取消订阅时放弃排队
+     */
+    public Mono<Permit> acquireAsync(Lane lane, String chatId) {
+        return Mono.create(sink -> {
+            CompletableFuture<Permit> future = enqueue(lane, chatId);
+            sink.onCancel(() -> abandon(future));
+            future.whenComplete((permit, error) -> {
+                if (error != null)
+                    sink.error(error);
+                else
+                    sink.success(permit);
+            });
+        });
+    }
+
+    private CompletableFuture<Permit> enqueue(Lane lane, String chatId) {
+        LaneConfig config = laneConfigs.get(lane);
+        Waiter waiter = new Waiter(chatId, new CompletableFuture<>(), System.nanoTime());
+        List<Grant> grants;
+        boolean full = false;
+        synchronized (this) {
+            ArrayDeque<Waiter> queue = queues.get(lane);
+            queue.addLast(waiter);
+            grants = grantLocked();
+            // 未能立即执行且超出队列长度
+            if (queue.peekLast() == waiter && queue.size() > config.maxQueued()) {
+                queue.removeLast();
+                full = true;
+            }
+        }
+        complete(grants);
+        CompletableFuture<Permit> future = waiter.future();
+        if (full) {
+            rejected.get(lane).increment();
+            log.warn("{} 通道的模型调用排队已满，拒绝执行", lane);
+            future.completeExceptionally(new LlmBusyException("模型调用排队已满"));
+        } else if (!future.isDone()) {
+            CompletableFuture.delayedExecutor(config.maxWait().toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+                if (future.completeExceptionally(new LlmBusyException("模型调用排队超时"))) {
+                    synchronized (this) {
+                        queues.get(lane).remove(waiter);
+                    }
+                    rejected.get(lane).increment();
+                    log.warn("{} 通道的模型调用排队超过 {}，放弃执行", lane, config.maxWait());
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * 放弃排队；名额已经分配时归还
+     */
+    private void abandon(CompletableFuture<Permit> future) {
+        if (!future.cancel(false) && !future.isCompletedExceptionally())
+            future.thenAccept(Permit::release);
+    }
+
+    private void release(Permit permit) {
+        List<Grant> grants;
+        synchronized (this) {
+            active--;
+            laneActive.merge(permit.lane, -1, Integer::sum);
+            if (permit.chatId != null)
+                chatActive.computeIfPresent(permit.chatId, (k, v) -> v > 1 ? v - 1 : null);
+            grants = grantLocked();
+        }
+        complete(grants);
+    }
+
+    /**
+     * 按通道优先级把空出的名额分配给等待者，需持有锁；返回的名额在锁外交给等待者
+     */
+    private List<Grant> grantLocked() {
+        List<Grant> grants = new ArrayList<>();
+        for (Lane lane : Lane.values()) {
+            LaneConfig config = laneConfigs.get(lane);
+            for (Iterator<Waiter> it = queues.get(lane).iterator(); it.hasNext(); ) {
+                if (active >= maxConcurrent)
+                    return grants;
+                if (laneActive.get(lane) >= config.maxConcurrent())
+                    break;
+                Waiter waiter = it.next();
+                if (waiter.future().isDone()) {
+                    it.remove();
+                    continue;
+                }
+                // 同一会话已达上限的等待者留在队列中，不阻塞后面的等待者
+                if (waiter.chatId() != null && chatActive.getOrDefault(waiter.chatId(), 0) >= perChatMaxConcurrent)
+                    continue;
+                it.remove();
+                active++;
+                laneActive.merge(lane, 1, Integer::sum);
+                if (waiter.chatId() != null)
+                    chatActive.merge(waiter.chatId(), 1, Integer::sum);
+                waitTimers.get(lane).record(System.nanoTime() - waiter.enqueuedAt(), TimeUnit.NANOSECONDS);
+                grants.add(new Grant(waiter, new Permit(lane, waiter.chatId())));
+            }
+        }
+        return grants;
+    }
+
+    private static void complete(List<Grant> grants) {
+        for (Grant grant : grants) {
+            // 等待者刚好超时或取消，立即归还
+            if (!grant.waiter().future().complete(grant.permit()))
+                grant.permit().release();
+        }
+    }
+
+    private synchronized int queued(Lane lane) {
+        return queues.get(lane).size();
+    }
+
+    private synchronized int active(Lane lane) {
+        return laneActive.get(lane);
+    }
+}
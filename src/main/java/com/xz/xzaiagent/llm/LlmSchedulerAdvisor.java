@@ -0,0 +1,73 @@
+package com.xz.xzaiagent.llm;
+
+import org.springframework.ai.chat.client.advisor.api.*;
+import org.springframework.core.Ordered;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY;
+
+/**
+ * 模型调用调度 Advisor：调用模型前向 LlmScheduler 申请并发名额，调用（或流）结束后归还
+ * <p>
+ * 排在所有 Advisor 的最内层，对话记忆检索、语义缓存命中等不调用模型的环节不占用名额。
+ * 会话 id 取自 advisor 参数 CHAT_ID_KEY，未设置时使用对话记忆的会话 id
+ */
+public class LlmSchedulerAdvisor implements CallAroundAdvisor, StreamAroundAdvisor {
+
+    /**
+     * 用于单会话并发限制的会话 id 参数
+     */
+    public static final String CHAT_ID_KEY = "llm_scheduler_chat_id";
+
+    private final LlmScheduler scheduler;
+
+    private final LlmScheduler.Lane lane;
+
+    public LlmSchedulerAdvisor(LlmScheduler scheduler, LlmScheduler.Lane lane) {
+        this.scheduler = scheduler;
+        this.lane = lane;
+    }
+
+    @Override
+    public AdvisedResponse aroundCall(AdvisedRequest advisedRequest, CallAroundAdvisorChain chain) {
+        if (!scheduler.isEnabled())
+            return chain.nextAroundCall(advisedRequest);
+        LlmScheduler.Permit permit = scheduler.acquire(lane, chatId(advisedRequest));
+        try {
+            return chain.nextAroundCall(advisedRequest);
+        } finally {
+            permit.release();
+        }
+    }
+
+    @Override
+    public Flux<AdvisedResponse> aroundStream(AdvisedRequest advisedRequest, StreamAroundAdvisorChain chain) {
+        if (!scheduler.isEnabled())
+            return chain.nextAroundStream(advisedRequest);
+        // 流完成、出错或被取消时归还名额
+        return Flux.usingWhen(scheduler.acquireAsync(lane, chatId(advisedRequest)),
+                permit -> chain.nextAroundStream(advisedRequest),
+                permit -> Mono.fromRunnable(permit::release));
+    }
+
+    private static String chatId(AdvisedRequest request) {
+        Object chatId = request.adviseContext().get(CHAT_ID_KEY);
+        if (chatId == null)
+            chatId = request.adviseContext().get(CHAT_MEMORY_CONVERSATION_ID_KEY);
+        return chatId == null ? null : chatId.toString();
+    }
+
+    @Override
+    public String getName() {
+        return this.getClass().getSimpleName();
+    }
+
+    /**
+     * 最内层，紧挨模型调用
+     */
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE - 100;
+    }
+}
@@ -0,0 +1,220 @@
+package com.xz.xzaiagent.sse;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 一次智能体流式运行的事件日志：为每个步骤事件分配 id（SSE 的 id 字段），把最近 capacity 条保存在环形缓冲中，
+ * 并转发给当前连接的发送队列
+ * <p>
+ * 连接断开不影响运行，事件继续写入缓冲；客户端带着 Last-Event-ID 重新连接时通过 attach 接上新的连接，
+ * 只重放缺失的事件，不重复执行任何步骤。增量输出（思考阶段的 token）只转发给当前连接，不记录、不重放。
+ * 事件 id 形如 "运行标识-序号"，其他运行（或服务重启前）的 Last-Event-ID 不会被误认
+ */
+@Slf4j
+public class SseEventJournal {
+
+    private record Event(long seq, String data) {
+    }
+
+    private final String runId = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+
+    private final int capacity;
+
+    private final long detachGraceNanos;
+
+    private final ArrayDeque<Event> events = new ArrayDeque<>();
+
+    private long nextSeq = 1;
+
+    /**
+     * 已移出缓冲的最大序号，没有移出过时为 -1
+     */
+    private long evictedSeq = -1;
+
+    /**
+     * 当前连接，断开后为 null
+     */
+    private SseOutbox outbox;
+
+    /**
+     * 连接断开的时间，已连接时为 0
+     */
+    private long detachedAt;
+
+    /**
+     * 运行已结束，attach 重放后直接结束连接
+     */
+    private boolean completed;
+
+    /**
+     * 被用户终止
+     */
+    private boolean terminated;
+
+    SseEventJournal(SseOutbox outbox, int capacity, Duration detachGrace) {
+        this.outbox = outbox;
+        this.capacity = Math.max(1, capacity);
+        this.detachGraceNanos = detachGrace.toNanos();
+    }
+
+    /**
+     * 当前连接的 SseEmitter，已断开时为 null
+     */
+    public synchronized SseEmitter emitter() {
+        return outbox != null ? outbox.emitter() : null;
+    }
+
+    /**
+     * 记录并发送步骤事件
+     */
+    public synchronized void send(String data) {
+        Event event = new Event(nextSeq++, data);
+        events.addLast(event);
+        if (events.size() > capacity)
+            evictedSeq = events.removeFirst().seq();
+        deliver(event);
+    }
+
+    /**
+     * 记录并发送握手事件（如 chatId），作为序号为 0 的第一个事件，让客户端从一开始就持有可用于重新连接的事件 id。
+     * 需在任何步骤事件之前调用
+     */
+    public synchronized void sendHandshake(String data) {
+        if (nextSeq != 1 || !events.isEmpty())
+            throw new IllegalStateException("握手事件必须是第一个事件");
+        Event event = new Event(0, data);
+        events.addLast(event);
+        deliver(event);
+    }
+
+    /**
+     * 发送增量输出，只发给当前连接
+     */
+    public synchronized void sendProgress(SseEmitter.SseEventBuilder event) {
+        if (outbox == null)
+            return;
+        try {
+            outbox.sendProgress(event);
+        } catch (IOException e) {
+            detach();
+        }
+    }
+
+    /**
+     * 运行结束：结束当前连接，之后重新连接的客户端重放缺失事件后随即结束
+     */
+    public synchronized void complete() {
+        completed = true;
+        if (outbox != null)
+            outbox.complete();
+    }
+
+    /**
+     * 被用户终止：运行在下一个步骤前停止，不再接受重新连接
+     */
+    public synchronized void terminate() {
+        terminated = true;
+    }
+
+    /**
+     * 运行是否已结束
+     */
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * 是否应停止运行：被用户终止，或连接断开超过 detachGrace 仍无客户端重新连接
+     */
+    public synchronized boolean isAbandoned() {
+        if (terminated)
+            return true;
+        if (outbox != null && !outbox.isOpen())
+            detach();
+        return outbox == null && System.nanoTime() - detachedAt > detachGraceNanos;
+    }
+
+    /**
+     * 重新连接：重放 lastEventId 之后的事件，之后的事件发给新连接
+     *
+     * @param lastEventId 客户端收到的最后一个事件 id（Last-Event-ID 请求头）
+     * @return 是否接上；lastEventId 不属于本次运行或运行已被终止时返回 false，由调用方按新请求处理
+     */
+    public synchronized boolean attach(SseOutbox newOutbox, String lastEventId) {
+        long lastSeq = parseSeq(lastEventId);
+        if (lastSeq < 0)
+            return false;
+        return attach(newOutbox, lastSeq);
+    }
+
+    /**
+     * 没有 Last-Event-ID 的重新连接（如客户端在收到第一个事件前断开）：从头重放缓冲中的全部事件
+     *
+     * @return 是否接上；运行已被终止时返回 false
+     */
+    public synchronized boolean attachFromStart(SseOutbox newOutbox) {
+        return attach(newOutbox, -1);
+    }
+
+    private boolean attach(SseOutbox newOutbox, long lastSeq) {
+        if (terminated)
+            return false;
+        if (outbox != null && outbox != newOutbox)
+            outbox.complete();
+        outbox = newOutbox;
+        detachedAt = 0;
+        if (evictedSeq > lastSeq)
+            log.warn("重新连接时部分事件已移出缓冲，无法重放：请求 {} 之后，最早可重放 {}", lastSeq, events.peekFirst().seq());
+        int replayed = 0;
+        for (Event event : events) {
+            if (event.seq() <= lastSeq)
+                continue;
+            deliver(event);
+            replayed++;
+        }
+        log.info("SSE 客户端重新连接，重放 {} 个事件", replayed);
+        if (completed && outbox != null)
+            outbox.complete();
+        return true;
+    }
+
+    private void deliver(Event event) {
+        if (outbox == null)
+            return;
+        try {
+            outbox.send(SseEmitter.event().id(runId + "-" + event.seq()).data(event.data()));
+        } catch (IOException e) {
+            detach();
+        }
+    }
+
+    private void detach() {
+        if (outbox == null)
+            return;
+        log.info("SSE 连接已断开，运行继续，等待客户端重新连接");
+        outbox = null;
+        detachedAt = System.nanoTime();
+    }
+
+    /**
+     * 解析本次运行的事件 id，不属于本次运行时返回 -1
+     */
+    private long parseSeq(String eventId) {
+        if (eventId == null)
+            return -1;
+        String prefix = runId + "-";
+        if (!eventId.startsWith(prefix))
+            return -1;
+        try {
+            return Long.parseLong(eventId.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
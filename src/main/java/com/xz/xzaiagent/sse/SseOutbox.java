@@ -0,0 +1,309 @@
+package com.xz.xzaiagent.sse;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 单个 SSE 连接的有界发送队列：生产者（智能体 / 对话线程）只把事件放入队列，由该连接专属的虚拟线程调用 SseEmitter.send 写出，
+ * 慢客户端只会阻塞自己的发送线程，不会占住执行器线程
+ * <p>
+ * 队列满时按 Policy 处理：
+ * - BLOCK：生产者等待队列有空位（直到连接超时或断开）；
+ * - DROP_PROGRESS：丢弃中间进度事件（增量输出），普通事件先挤掉队列中最早的进度事件，仍无空位时等待至多 deadline，之后断开连接；
+ * - DISCONNECT：生产者等待至多 deadline，仍无空位时断开连接。
+ * 连接已断开（客户端断开、超时或被策略断开）后 send 抛出 IOException，与直接调用 SseEmitter.send 的行为一致。
+ * complete / completeWithError 同样排在已入队的事件之后执行
+ */
+@Slf4j
+public class SseOutbox {
+
+    /**
+     * 队列满时的处理策略
+     */
+    public enum Policy {
+        BLOCK, DROP_PROGRESS, DISCONNECT
+    }
+
+    private enum Kind {
+        DATA, COMPLETE, ERROR
+    }
+
+    /**
+     * 一个待发送的事件（或结束信号）
+     *
+     * @param payload  SseEventBuilder 或普通数据，结束信号为 null
+     * @param progress 是否为可丢弃的进度事件
+     */
+    private record Item(Kind kind, Object payload, boolean progress, Throwable error, long enqueuedAt) {
+    }
+
+    private final SseEmitter emitter;
+
+    private final Policy policy;
+
+    private final int capacity;
+
+    private final long deadlineNanos;
+
+    private final SseOutboxMetrics metrics;
+
+    private final ArrayDeque<Item> queue = new ArrayDeque<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * 已入队结束信号，不再接收事件
+     */
+    private boolean closed;
+
+    /**
+     * 连接已不可用（客户端断开、超时或被策略断开），队列已清空
+     */
+    private boolean broken;
+
+    /**
+     * 本连接事件的最大排队时间
+     */
+    private long maxLagNanos;
+
+    SseOutbox(SseEmitter emitter, Policy policy, int capacity, Duration deadline, SseOutboxMetrics metrics) {
+        this.emitter = emitter;
+        this.policy = policy;
+        this.capacity = Math.max(1, capacity);
+        this.deadlineNanos = deadline.toNanos();
+        this.metrics = metrics;
+        // 超时、出错或完成后不再发送，唤醒等待中的生产者
+        emitter.onTimeout(this::markBroken);
+        emitter.onError(e -> markBroken());
+        emitter.onCompletion(this::markBroken);
+        metrics.streamOpened();
+        Thread.ofVirtual().name("sse-outbox").start(this::drain);
+    }
+
+    public SseEmitter emitter() {
+        return emitter;
+    }
+
+    /**
+     * 连接是否仍可发送（未断开、未结束）
+     */
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return !broken && !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 发送普通事件
+     */
+    public void send(Object data) throws IOException {
+        enqueue(new Item(Kind.DATA, data, false, null, System.nanoTime()));
+    }
+
+    /**
+     * 发送中间进度事件，DROP_PROGRESS 策略下队列满时被丢弃
+     */
+    public void sendProgress(SseEmitter.SseEventBuilder event) throws IOException {
+        enqueue(new Item(Kind.DATA, event, true, null, System.nanoTime()));
+    }
+
+    /**
+     * 发完已入队的事件后结束连接
+     */
+    public void complete() {
+        close(new Item(Kind.COMPLETE, null, false, null, System.nanoTime()));
+    }
+
+    /**
+     * 发完已入队的事件后以错误结束连接
+     */
+    public void completeWithError(Throwable error) {
+        close(new Item(Kind.ERROR, null, false, error, System.nanoTime()));
+    }
+
+    private void close(Item item) {
+        lock.lock();
+        try {
+            if (closed || broken)
+                return;
+            closed = true;
+            // 结束信号不受容量限制
+            queue.addLast(item);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Item item) throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            if (queue.size() >= capacity && !makeRoom(item))
+                return;
+            queue.addLast(item);
+            metrics.queued(1);
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待 SSE 发送队列时被中断", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 队列已满时按策略腾出空位，需持有锁
+     *
+     * @return 是否应继续入队（false 表示事件已被丢弃）
+     */
+    private boolean makeRoom(Item item) throws IOException, InterruptedException {
+        if (policy == Policy.BLOCK) {
+            while (queue.size() >= capacity) {
+                notFull.await();
+                ensureOpen();
+            }
+            return true;
+        }
+        if (policy == Policy.DROP_PROGRESS) {
+            if (item.progress()) {
+                metrics.dropped();
+                return false;
+            }
+            if (dropOldestProgress())
+                return true;
+        }
+        long remaining = deadlineNanos;
+        while (queue.size() >= capacity) {
+            if (remaining <= 0) {
+                disconnect();
+                ensureOpen();
+            }
+            remaining = notFull.awaitNanos(remaining);
+            ensureOpen();
+        }
+        return true;
+    }
+
+    private boolean dropOldestProgress() {
+        for (Iterator<Item> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().progress()) {
+                it.remove();
+                metrics.queued(-1);
+                metrics.dropped();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (broken)
+            throw new IOException("SSE 连接已断开");
+        if (closed)
+            throw new IOException("SSE 连接已结束");
+    }
+
+    /**
+     * 客户端读取过慢，断开连接；发送线程可能正阻塞在写入中，结束连接放到单独的虚拟线程中执行，生产者立即返回
+     */
+    private void disconnect() {
+        log.warn("SSE 客户端读取过慢，{} ms 内发送队列（{} 条）没有空位，断开连接", TimeUnit.NANOSECONDS.toMillis(deadlineNanos), capacity);
+        metrics.disconnected();
+        markBrokenLocked();
+        Thread.ofVirtual().name("sse-outbox-disconnect").start(() -> {
+            try {
+                emitter.completeWithError(new IOException("SSE 客户端读取过慢"));
+            } catch (Exception ignored) {
+            }
+        });
+    }
+
+    private void markBroken() {
+        lock.lock();
+        try {
+            markBrokenLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void markBrokenLocked() {
+        if (broken)
+            return;
+        broken = true;
+        metrics.queued(-(int) queue.stream().filter(item -> item.kind() == Kind.DATA).count());
+        queue.clear();
+        notFull.signalAll();
+        notEmpty.signal();
+    }
+
+    /**
+     * 发送线程：按顺序写出队列中的事件，直到结束信号或连接断开
+     */
+    private void drain() {
+        try {
+            while (true) {
+                Item item;
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && !broken)
+                        notEmpty.await();
+                    if (broken)
+                        return;
+                    item = queue.pollFirst();
+                    if (item.kind() == Kind.DATA)
+                        metrics.queued(-1);
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+
+                long lag = System.nanoTime() - item.enqueuedAt();
+                maxLagNanos = Math.max(maxLagNanos, lag);
+                metrics.lag(lag);
+                try {
+                    switch (item.kind()) {
+                        case DATA -> {
+                            if (item.payload() instanceof SseEmitter.SseEventBuilder event)
+                                emitter.send(event);
+                            else
+                                emitter.send(item.payload());
+                        }
+                        case COMPLETE -> {
+                            emitter.complete();
+                            return;
+                        }
+                        case ERROR -> {
+                            emitter.completeWithError(item.error());
+                            return;
+                        }
+                    }
+                } catch (Exception e) {
+                    log.debug("SSE 发送失败：{}", e.getMessage());
+                    markBroken();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            metrics.streamClosed(maxLagNanos);
+        }
+    }
+}
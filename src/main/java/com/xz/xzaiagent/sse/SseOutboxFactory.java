@@ -0,0 +1,74 @@
+package com.xz.xzaiagent.sse;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Duration;
+
+/**
+ * 为 SseEmitter 创建有界发送队列（SseOutbox），队列容量与慢客户端策略由配置决定
+ */
+@Component
+public class SseOutboxFactory {
+
+    private final SseOutbox.Policy policy;
+
+    private final int capacity;
+
+    private final Duration deadline;
+
+    private final SseOutboxMetrics metrics;
+
+    /**
+     * 可恢复的流（SseEventJournal）保留的最近事件数
+     */
+    @Value("${app.sse.resume.bufferSize:64}")
+    private int resumeBufferSize = 64;
+
+    /**
+     * 可恢复的流断开后等待客户端重新连接的时间，超过后停止运行
+     */
+    @Value("${app.sse.resume.detachGrace:60s}")
+    private Duration resumeDetachGrace = Duration.ofSeconds(60);
+
+    /**
+     * @param policy   队列已满时的处理策略：block / drop-progress / disconnect
+     * @param capacity 每个连接排队待发送的最大事件数
+     * @param deadline drop-progress / disconnect 策略下等待队列空位的最长时间，超过后断开连接
+     */
+    public SseOutboxFactory(@Value("${app.sse.outbox.policy:drop-progress}") String policy,
+                            @Value("${app.sse.outbox.capacity:256}") int capacity,
+                            @Value("${app.sse.outbox.deadline:10s}") Duration deadline,
+                            MeterRegistry meterRegistry) {
+        this.policy = SseOutbox.Policy.valueOf(policy.trim().replace('-', '_').toUpperCase());
+        this.capacity = Math.max(1, capacity);
+        this.deadline = deadline;
+        this.metrics = new SseOutboxMetrics(meterRegistry, this.policy);
+    }
+
+    /**
+     * 脱离 Spring 使用时（如直接 new 出来的智能体）的默认实例：BLOCK 策略，指标不对外暴露
+     */
+    private static final class Standalone {
+        private static final SseOutboxFactory INSTANCE =
+                new SseOutboxFactory("block", 256, Duration.ZERO, new SimpleMeterRegistry());
+    }
+
+    public static SseOutboxFactory standalone() {
+        return Standalone.INSTANCE;
+    }
+
+    public SseOutbox create(SseEmitter emitter) {
+        return new SseOutbox(emitter, policy, capacity, deadline, metrics);
+    }
+
+    /**
+     * 创建可恢复的流：事件带 id 并保留最近的若干条，客户端断开后可带 Last-Event-ID 重新连接
+     */
+    public SseEventJournal createJournal(SseEmitter emitter) {
+        return new SseEventJournal(create(emitter), resumeBufferSize, resumeDetachGrace);
+    }
+}
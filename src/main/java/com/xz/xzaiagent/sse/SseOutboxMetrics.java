@@ -0,0 +1,76 @@
+package com.xz.xzaiagent.sse;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SSE 发送队列的指标，所有连接共享
+ */
+class SseOutboxMetrics {
+
+    private final AtomicInteger streams = new AtomicInteger();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final Timer lag;
+
+    private final Timer streamMaxLag;
+
+    private final Counter dropped;
+
+    private final Counter disconnected;
+
+    SseOutboxMetrics(MeterRegistry meterRegistry, SseOutbox.Policy policy) {
+        String policyTag = policy.name().toLowerCase();
+        Gauge.builder("sse.outbox.streams", streams, AtomicInteger::get)
+                .description("使用发送队列的 SSE 连接数")
+                .register(meterRegistry);
+        Gauge.builder("sse.outbox.queued", queued, AtomicInteger::get)
+                .description("所有 SSE 连接排队待发送的事件数")
+                .register(meterRegistry);
+        this.lag = Timer.builder("sse.outbox.lag")
+                .description("SSE 事件从入队到写出的时间")
+                .register(meterRegistry);
+        this.streamMaxLag = Timer.builder("sse.outbox.stream.max.lag")
+                .description("每个 SSE 连接中事件排队时间的最大值，连接结束时记录")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("sse.outbox.dropped")
+                .description("发送队列已满时丢弃的进度事件数")
+                .tag("policy", policyTag)
+                .register(meterRegistry);
+        this.disconnected = Counter.builder("sse.outbox.disconnected")
+                .description("因客户端读取过慢被断开的 SSE 连接数")
+                .tag("policy", policyTag)
+                .register(meterRegistry);
+    }
+
+    void streamOpened() {
+        streams.incrementAndGet();
+    }
+
+    void streamClosed(long maxLagNanos) {
+        streams.decrementAndGet();
+        streamMaxLag.record(maxLagNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void queued(int delta) {
+        queued.addAndGet(delta);
+    }
+
+    void lag(long nanos) {
+        lag.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void dropped() {
+        dropped.increment();
+    }
+
+    void disconnected() {
+        disconnected.increment();
+    }
+}
@@ -1,5 +1,6 @@
 package com.xz.xzaiagent.tools;
 
+import com.xz.xzaiagent.tools.cache.ToolResultCache;
 import org.springframework.ai.tool.ToolCallback;
 import org.springframework.ai.tool.ToolCallbacks;
 import org.springframework.beans.factory.annotation.Value;
@@ -16,7 +17,7 @@ public class ToolRegistration {
     private String apiKey;
 
     @Bean
-    public ToolCallback[] allTools() {
+    public ToolCallback[] allTools(ToolResultCache toolResultCache) {
         FileOperationTool fileOperationTool = new FileOperationTool();
         WebSearchTool webSearchTool = new WebSearchTool(apiKey);
         WebScrapingTool webScrapingTool = new WebScrapingTool();
@@ -25,7 +26,8 @@ public class ToolRegistration {
         PDFGenerationTool pdfGenerationTool = new PDFGenerationTool();
         TerminateTool terminateTool = new TerminateTool();
         // AskHumanTool askHumanTool = new AskHumanTool();
-        return ToolCallbacks.from(  // filter(toolMethod -> toolMethod.isAnnotationPresent(Tool.class)) 会去识别 @Tool 注解为 AI 可调用的工具
+        // 搜索、网页抓取等幂等工具经过共享的结果缓存
+        return toolResultCache.wrap(ToolCallbacks.from(  // filter(toolMethod -> toolMethod.isAnnotationPresent(Tool.class)) 会去识别 @Tool 注解为 AI 可调用的工具
                 fileOperationTool,
                 webSearchTool,
                 webScrapingTool,
@@ -34,6 +36,6 @@ public class ToolRegistration {
                 pdfGenerationTool,
                 terminateTool
                 // askHumanTool 先不主动询问用户
-        );
+        ));
     }
 }
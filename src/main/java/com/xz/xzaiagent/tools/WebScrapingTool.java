@@ -12,6 +12,11 @@ import org.springframework.ai.tool.annotation.ToolParam;
 @Slf4j
 public class WebScrapingTool {
 
+    /**
+     * 抓取出错时的回复
+     */
+    public static final String ERROR_REPLY = "网页抓取工具：抓取网页出错！";
+
     /**
      * 最大截断长度
      */
@@ -49,7 +54,7 @@ public class WebScrapingTool {
             return sb.toString();
         } catch (Exception e) {
             log.error("抓取网页出错：{}", e.getMessage());
-            return "网页抓取工具：抓取网页出错！";
+            return ERROR_REPLY;
         }
     }
 }
@@ -26,6 +26,16 @@ public class WebSearchTool {
         this.apiKey = apiKey;
     }
 
+    /**
+     * 没有搜索结果（或接口返回结构已变更）时的回复
+     */
+    public static final String NO_RESULTS_REPLY = "联网搜索工具：未找到结果或搜索接口返回结构已变更。";
+
+    /**
+     * 搜索出错时的回复
+     */
+    public static final String ERROR_REPLY = "联网搜索工具：使用百度检索失败！";
+
     /**
      * 最大截断长度
      */
@@ -63,7 +73,7 @@ public class WebSearchTool {
                 // 返回结构可能变更或无结果，记录并返回简洁错误提示（同时附带响应片段便于排查）
                 String snippet = response.length() > MAX_TRUNCATE_LEN ? response.substring(0, MAX_TRUNCATE_LEN) : response;
                 log.warn("联网搜索工具：未找到结果或搜索接口返回结构已变更。响应片段：{}", snippet);
-                return "联网搜索工具：未找到结果或搜索接口返回结构已变更。";
+                return NO_RESULTS_REPLY;
             }
 
             int limit = Math.min(organicResults.size(), TOP_5);
@@ -95,7 +105,7 @@ public class WebSearchTool {
             return sb.toString();
         } catch (Exception e) {
             log.error("使用百度检索失败：{}", e.getMessage());
-            return "联网搜索工具：使用百度检索失败！";
+            return ERROR_REPLY;
         }
     }
 }
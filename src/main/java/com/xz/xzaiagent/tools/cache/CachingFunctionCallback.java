@@ -0,0 +1,44 @@
+package com.xz.xzaiagent.tools.cache;
+
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.model.function.FunctionCallback;
+
+/**
+ * 带结果缓存的 FunctionCallback 装饰器
+ */
+class CachingFunctionCallback implements FunctionCallback {
+
+    protected final FunctionCallback delegate;
+
+    protected final ToolResultCache cache;
+
+    CachingFunctionCallback(FunctionCallback delegate, ToolResultCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public String getDescription() {
+        return delegate.getDescription();
+    }
+
+    @Override
+    public String getInputTypeSchema() {
+        return delegate.getInputTypeSchema();
+    }
+
+    @Override
+    public String call(String functionInput) {
+        return cache.call(getName(), functionInput, () -> delegate.call(functionInput));
+    }
+
+    @Override
+    public String call(String functionInput, ToolContext toolContext) {
+        return cache.call(getName(), functionInput, () -> delegate.call(functionInput, toolContext));
+    }
+}
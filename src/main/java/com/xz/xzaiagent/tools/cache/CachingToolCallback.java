@@ -0,0 +1,43 @@
+package com.xz.xzaiagent.tools.cache;
+
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.metadata.ToolMetadata;
+
+/**
+ * 带结果缓存的 ToolCallback 装饰器
+ */
+class CachingToolCallback extends CachingFunctionCallback implements ToolCallback {
+
+    private final ToolCallback toolDelegate;
+
+    CachingToolCallback(ToolCallback delegate, ToolResultCache cache) {
+        super(delegate, cache);
+        this.toolDelegate = delegate;
+    }
+
+    @Override
+    public ToolDefinition getToolDefinition() {
+        return toolDelegate.getToolDefinition();
+    }
+
+    @Override
+    public ToolMetadata getToolMetadata() {
+        return toolDelegate.getToolMetadata();
+    }
+
+    @Override
+    public String getName() {
+        return toolDelegate.getName();
+    }
+
+    @Override
+    public String getDescription() {
+        return toolDelegate.getDescription();
+    }
+
+    @Override
+    public String getInputTypeSchema() {
+        return toolDelegate.getInputTypeSchema();
+    }
+}
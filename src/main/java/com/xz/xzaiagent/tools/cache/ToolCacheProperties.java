@@ -0,0 +1,33 @@
+package com.xz.xzaiagent.tools.cache;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 工具结果缓存配置（app.tools.cache）
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "app.tools.cache")
+public class ToolCacheProperties {
+
+    /**
+     * 是否启用工具结果缓存
+     */
+    private boolean enabled = true;
+
+    /**
+     * 缓存条目上限，超出后淘汰最久未使用的条目
+     */
+    private int maxEntries = 1000;
+
+    /**
+     * 各工具的缓存有效期，key 为工具名；未配置的工具不缓存
+     */
+    private Map<String, Duration> ttl = new LinkedHashMap<>();
+}
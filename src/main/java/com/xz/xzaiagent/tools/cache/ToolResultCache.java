@@ -0,0 +1,224 @@
+package com.xz.xzaiagent.tools.cache;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.xz.xzaiagent.tools.WebScrapingTool;
+import com.xz.xzaiagent.tools.WebSearchTool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.model.function.FunctionCallback;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.util.json.JsonParser;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 幂等工具（搜索、网页抓取、图片搜索等）的结果缓存，所有智能体 / 对话共享
+ * <p>
+ * key 为“工具名 + 规范化后的参数”，每个工具单独配置有效期，未配置有效期的工具不经过缓存；
+ * 条目总数超过上限时淘汰最久未使用的条目。工具抛出异常或返回该工具自己的错误回复时不缓存（按工具逐一识别，不扫描结果文本）。
+ */
+@Slf4j
+@Component
+public class ToolResultCache {
+
+    private record Entry(String result, long expiresAt) {
+    }
+
+    /**
+     * 各工具在出错时返回的固定回复（这些工具捕获异常后返回提示而不是抛出），key 为工具名，按解码后的回复文本判断（见 replyText）
+     * <p>
+     * searchImage 由图片搜索 MCP 服务提供，出错时返回 "Error search image: " + 异常信息
+     */
+    private static final Map<String, Predicate<String>> FAILURE_REPLIES = Map.of(
+            "searchWeb", result -> result.equals(WebSearchTool.NO_RESULTS_REPLY) || result.equals(WebSearchTool.ERROR_REPLY),
+            "scrapeWebPage", WebScrapingTool.ERROR_REPLY::equals,
+            "searchImage", result -> result.startsWith("Error search image: ")
+    );
+
+    private final ToolCacheProperties properties;
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 按访问顺序排序的 LRU 表，所有访问都在 synchronized (cache) 内进行
+     */
+    private final LinkedHashMap<String, Entry> cache;
+
+    public ToolResultCache(ToolCacheProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= properties.getMaxEntries())
+                    return false;
+                meterRegistry.counter("tool.cache.evictions").increment();
+                return true;
+            }
+        };
+        Gauge.builder("tool.cache.size", cache, c -> {
+                    synchronized (c) {
+                        return c.size();
+                    }
+                })
+                .description("工具结果缓存条目数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 为配置了有效期的工具包装缓存层，其余工具原样返回
+     */
+    public ToolCallback[] wrap(ToolCallback[] callbacks) {
+        return Arrays.stream(callbacks)
+                .map(callback -> ttlFor(callback.getName()) == null ? callback : new CachingToolCallback(callback, this))
+                .toArray(ToolCallback[]::new);
+    }
+
+    /**
+     * 为配置了有效期的工具包装缓存层（用于 MCP 等只提供 FunctionCallback 的工具）
+     */
+    public FunctionCallback[] wrap(FunctionCallback[] callbacks) {
+        return Arrays.stream(callbacks)
+                .map(callback -> {
+                    if (ttlFor(callback.getName()) == null)
+                        return callback;
+                    return callback instanceof ToolCallback toolCallback
+                            ? new CachingToolCallback(toolCallback, this)
+                            : new CachingFunctionCallback(callback, this);
+                })
+                .toArray(FunctionCallback[]::new);
+    }
+
+    /**
+     * 先查缓存，未命中或已过期时执行工具并缓存结果
+     */
+    String call(String toolName, String arguments, Supplier<String> invoker) {
+        Duration ttl = ttlFor(toolName);
+        if (!properties.isEnabled() || ttl == null)
+            return invoker.get();
+
+        String key = toolName + "|" + normalizeArguments(arguments);
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && entry.expiresAt() <= now) {
+                cache.remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            record(toolName, "hit");
+            log.info("工具 {} 命中缓存，参数：{}", toolName, arguments);
+            return entry.result();
+        }
+
+        record(toolName, "miss");
+        // 工具抛出的异常直接向上传播，不会进入缓存
+        String result = invoker.get();
+        if (isCacheable(toolName, result)) {
+            synchronized (cache) {
+                cache.put(key, new Entry(result, now + ttl.toMillis()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 查找工具的缓存有效期
+     */
+    private Duration ttlFor(String toolName) {
+        String name = configuredName(toolName, properties.getTtl());
+        return name == null ? null : properties.getTtl().get(name);
+    }
+
+    /**
+     * 按工具名查找配置项的 key；MCP 工具名可能带有客户端前缀，按“_工具名”后缀匹配
+     */
+    private static String configuredName(String toolName, Map<String, ?> configured) {
+        if (toolName == null)
+            return null;
+        if (configured.containsKey(toolName))
+            return toolName;
+        return configured.keySet().stream()
+                .filter(name -> toolName.endsWith("_" + name))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * 参数规范化：JSON 字段按名称排序，字符串值去除首尾空白并合并连续空白；无法解析时仅去除首尾空白
+     */
+    static String normalizeArguments(String arguments) {
+        if (StrUtil.isBlank(arguments))
+            return "";
+        try {
+            JSONObject json = JSONUtil.parseObj(arguments);
+            Map<String, Object> sorted = new TreeMap<>();
+            json.forEach((k, v) -> sorted.put(k, v instanceof String str ? str.trim().replaceAll("\\s+", " ") : v));
+            return JSONUtil.toJsonStr(sorted);
+        } catch (Exception e) {
+            return arguments.trim();
+        }
+    }
+
+    /**
+     * 空结果和工具自己的错误回复不缓存，避免把一次网络抖动缓存成长期失败；结果正文中出现“失败”等字样不影响缓存
+     */
+    private static boolean isCacheable(String toolName, String result) {
+        String text = replyText(result);
+        if (StrUtil.isBlank(text))
+            return false;
+        String name = configuredName(toolName, FAILURE_REPLIES);
+        return name == null || !FAILURE_REPLIES.get(name).test(text);
+    }
+
+    /**
+     * 还原工具回复的原始文本：MethodToolCallback 把 String 返回值编码为 JSON 字符串（"\"...\""），
+     * MCP 工具的结果是内容列表的 JSON 数组（[{"type":"text","text":...}]），其中的 text 也可能是 JSON 字符串；
+     * 不是这两种形式时原样返回
+     */
+    private static String replyText(String result) {
+        if (result == null)
+            return null;
+        String text = result.strip();
+        try {
+            if (text.startsWith("[")) {
+                JsonNode contents = JsonParser.getObjectMapper().readTree(text);
+                StringBuilder joined = new StringBuilder();
+                for (JsonNode content : contents) {
+                    if (content.hasNonNull("text"))
+                        joined.append(replyText(content.get("text").asText()));
+                }
+                return joined.isEmpty() ? result : joined.toString();
+            }
+            if (text.startsWith("\""))
+                return JsonParser.getObjectMapper().readValue(text, String.class);
+        } catch (JsonProcessingException e) {
+            // 不是 JSON，按原始文本处理
+        }
+        return result;
+    }
+
+    private void record(String toolName, String result) {
+        Counter.builder("tool.cache.requests")
+                .description("工具结果缓存请求数")
+                .tag("tool", toolName)
+                .tag("result", result)
+                .register(meterRegistry)
+                .increment();
+    }
+}
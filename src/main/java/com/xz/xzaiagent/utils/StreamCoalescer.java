@@ -0,0 +1,198 @@
+package com.xz.xzaiagent.utils;
+
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 流式输出合并：把模型逐 token 输出的小片段攒成较大的批次再交给下游（规范化 + SSE 发送），
+ * 减少每个响应的 send / flush 次数与规范化开销
+ * <p>
+ * - 第一个片段立即发出，不影响首字延迟；
+ * - 之后的片段从批次中第一个片段到达起最多等待 window，或累计达到 maxBytes（UTF-8 字节数）时立即发出；
+ * - 遵循下游需求：下游没有请求时不发出，片段继续并入当前批次；批次达到 maxBytes 后暂停向上游请求，
+ * 背压由此传递到模型流，慢客户端最多占用约 maxBytes 的缓冲；
+ * - 上游完成或出错时先发出剩余内容；下游取消时同时取消上游与定时器。
+ * window 为 0 时不合并，原样返回上游
+ */
+public class StreamCoalescer {
+
+    /**
+     * @param chunks   上游片段
+     * @param window   批次的最长等待时间
+     * @param maxBytes 批次累计达到该字节数时立即发出
+     */
+    public static Flux<String> coalesce(Flux<String> chunks, Duration window, int maxBytes) {
+        if (window == null || window.isZero() || window.isNegative())
+            return chunks;
+        return Flux.create(sink -> {
+            Batch batch = new Batch(sink, window.toNanos(), Math.max(1, maxBytes));
+            chunks.subscribe(batch);
+            sink.onRequest(n -> batch.onRequest());
+            sink.onDispose(() -> {
+                batch.dispose();
+                batch.cancelTimer();
+            });
+        });
+    }
+
+    /**
+     * 一个订阅的合并状态：逐个向上游请求片段，上游回调、下游请求与定时器回调在该对象的锁内串行执行
+     */
+    private static final class Batch extends BaseSubscriber<String> {
+
+        private final FluxSink<String> sink;
+
+        private final long windowNanos;
+
+        private final int maxBytes;
+
+        private final StringBuilder buffer = new StringBuilder();
+
+        private int bytes;
+
+        private boolean first = true;
+
+        private Disposable timer;
+
+        /**
+         * 每次发出后递增，已过期的定时器回调据此忽略
+         */
+        private long generation;
+
+        /**
+         * 已到发出时机，但下游暂无需求
+         */
+        private boolean flushPending;
+
+        /**
+         * 已向上游请求、尚未收到片段
+         */
+        private boolean awaitingUpstream;
+
+        private boolean upstreamDone;
+
+        private Throwable upstreamError;
+
+        private boolean terminated;
+
+        Batch(FluxSink<String> sink, long windowNanos, int maxBytes) {
+            this.sink = sink;
+            this.windowNanos = windowNanos;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        protected synchronized void hookOnSubscribe(Subscription subscription) {
+            pull();
+        }
+
+        @Override
+        protected synchronized void hookOnNext(String chunk) {
+            awaitingUpstream = false;
+            if (chunk != null && !chunk.isEmpty()) {
+                buffer.append(chunk);
+                bytes += utf8Length(chunk);
+                if (first || bytes >= maxBytes) {
+                    first = false;
+                    flush();
+                } else if (timer == null && !flushPending) {
+                    long scheduledGeneration = generation;
+                    // 下游发送是阻塞 IO，定时发出放在可阻塞的线程池中
+                    timer = Schedulers.boundedElastic().schedule(() -> onTimer(scheduledGeneration), windowNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            pull();
+        }
+
+        @Override
+        protected synchronized void hookOnComplete() {
+            upstreamDone = true;
+            flush();
+        }
+
+        @Override
+        protected synchronized void hookOnError(Throwable error) {
+            upstreamDone = true;
+            upstreamError = error;
+            flush();
+        }
+
+        /**
+         * 下游有了新的需求：发出等待中的批次，并继续向上游请求
+         */
+        synchronized void onRequest() {
+            if (flushPending || upstreamDone)
+                flush();
+            pull();
+        }
+
+        synchronized void cancelTimer() {
+            if (timer != null) {
+                timer.dispose();
+                timer = null;
+            }
+        }
+
+        private synchronized void onTimer(long scheduledGeneration) {
+            if (scheduledGeneration != generation)
+                return;
+            timer = null;
+            flush();
+            pull();
+        }
+
+        /**
+         * 发出已攒下的内容，下游没有需求时留到下次请求再发；上游已结束且内容已发完时结束下游。需持有锁
+         */
+        private void flush() {
+            cancelTimer();
+            if (!buffer.isEmpty()) {
+                if (sink.requestedFromDownstream() == 0) {
+                    flushPending = true;
+                    return;
+                }
+                flushPending = false;
+                generation++;
+                String out = buffer.toString();
+                buffer.setLength(0);
+                bytes = 0;
+                sink.next(out);
+            } else {
+                flushPending = false;
+            }
+            if (upstreamDone && !terminated) {
+                terminated = true;
+                if (upstreamError != null)
+                    sink.error(upstreamError);
+                else
+                    sink.complete();
+            }
+        }
+
+        /**
+         * 批次未满时向上游再请求一个片段，需持有锁
+         */
+        private void pull() {
+            if (upstreamDone || awaitingUpstream || bytes >= maxBytes)
+                return;
+            awaitingUpstream = true;
+            request(1);
+        }
+
+        private static int utf8Length(String s) {
+            int length = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                length += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.xz.xzaiagent.chatmemory;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * CachingChatMemory 并发压力测试：缓存容量远小于会话数，32 个虚拟线程交错读写 8 个会话，持续触发淘汰与后台写回，
+ * 验证消息不丢失（包括写回失败后重试）、同一线程写入的消息保持顺序
+ */
+class CachingChatMemoryConcurrencyTest {
+
+    private static final int THREADS = 32;
+
+    private static final int CONVERSATIONS = 8;
+
+    private static final int MESSAGES_PER_THREAD = 50;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentAddAndGetWithEviction() throws Exception {
+        runAndVerify(store -> store);
+    }
+
+    @Test
+    void failedWriteBacksAreRetried() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        runAndVerify(store -> new FlakyChatMemory(store, failing), () -> failing.set(false));
+    }
+
+    private void runAndVerify(Function<InFileChatMemory, ChatMemory> wrapper) throws Exception {
+        runAndVerify(wrapper, () -> {
+        });
+    }
+
+    private void runAndVerify(Function<InFileChatMemory, ChatMemory> wrapper, Runnable beforeClose) throws Exception {
+        InFileChatMemory store = newStore();
+        // 最多缓存 2 个会话、每个会话 8 条，读写 8 个会话时几乎每次访问都会淘汰
+        CachingChatMemory memory = new CachingChatMemory(wrapper.apply(store), 2, 8, Duration.ofMillis(5),
+                new SimpleMeterRegistry());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                        String conversationId = conversationId((thread + i) % CONVERSATIONS);
+                        memory.get(conversationId, 4);
+                        memory.add(conversationId, List.of(new UserMessage("t" + thread + "-" + i)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            beforeClose.run();
+            // 写回全部脏数据并关闭底层存储
+            memory.close();
+        }
+
+        InFileChatMemory reopened = newStore();
+        try {
+            int total = 0;
+            for (int c = 0; c < CONVERSATIONS; c++) {
+                List<Message> messages = reopened.get(conversationId(c), Integer.MAX_VALUE);
+                total += messages.size();
+                assertInThreadOrder(messages);
+            }
+            assertEquals(THREADS * MESSAGES_PER_THREAD, total);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private InFileChatMemory newStore() {
+        return new InFileChatMemory(dir.toString(), InFileChatMemory.StorageMode.LOG, 64, null,
+                new MessageCodec(true, 1024), InFileChatMemory.Durability.ASYNC);
+    }
+
+    /**
+     * 同一线程写入同一会话的消息序号应递增
+     */
+    private static void assertInThreadOrder(List<Message> messages) {
+        Map<String, Integer> lastIndex = new HashMap<>();
+        for (Message message : messages) {
+            String[] parts = message.getText().split("-");
+            int index = Integer.parseInt(parts[1]);
+            Integer previous = lastIndex.put(parts[0], index);
+            assertTrue(previous == null || previous < index, "线程 " + parts[0] + " 的消息顺序错乱");
+        }
+    }
+
+    private static String conversationId(int index) {
+        return "cache-stress-" + index;
+    }
+
+    /**
+     * failing 为 true 时每 3 次写入失败 1 次（失败时不写入任何消息）
+     */
+    private static final class FlakyChatMemory implements ChatMemory, Closeable {
+
+        private final InFileChatMemory store;
+
+        private final AtomicBoolean failing;
+
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        FlakyChatMemory(InFileChatMemory store, AtomicBoolean failing) {
+            this.store = store;
+            this.failing = failing;
+        }
+
+        @Override
+        public void add(String conversationId, List<Message> messages) {
+            if (failing.get() && attempts.incrementAndGet() % 3 == 0)
+                throw new IllegalStateException("模拟写回失败");
+            store.add(conversationId, messages);
+        }
+
+        @Override
+        public List<Message> get(String conversationId, int lastN) {
+            return store.get(conversationId, lastN);
+        }
+
+        @Override
+        public void clear(String conversationId) {
+            store.clear(conversationId);
+        }
+
+        @Override
+        public void close() {
+            store.close();
+        }
+    }
+}
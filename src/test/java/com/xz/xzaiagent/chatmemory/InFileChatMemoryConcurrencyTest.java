@@ -0,0 +1,100 @@
+package com.xz.xzaiagent.chatmemory;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * InFileChatMemory 并发压力测试：32 个虚拟线程交错读写 8 个共享会话，
+ * 验证两种存储模式下消息不丢失、同一线程写入的消息保持顺序，且不产生损坏文件
+ */
+class InFileChatMemoryConcurrencyTest {
+
+    private static final int THREADS = 32;
+
+    private static final int CONVERSATIONS = 8;
+
+    private static final int MESSAGES_PER_THREAD = 50;
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @EnumSource(InFileChatMemory.StorageMode.class)
+    void concurrentAddAndGetOnSharedConversations(InFileChatMemory.StorageMode mode) throws Exception {
+        // 压缩阈值取小值，让 LOG 模式在写入过程中频繁压缩
+        InFileChatMemory memory = new InFileChatMemory(dir.toString(), mode, 4, Duration.ofMillis(10),
+                new MessageCodec(true, 1024), InFileChatMemory.Durability.ASYNC);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                        String conversationId = conversationId((thread + i) % CONVERSATIONS);
+                        memory.get(conversationId, 20);
+                        memory.add(conversationId, List.of(new UserMessage("t" + thread + "-" + i)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            memory.close();
+        }
+
+        // 重新打开，从磁盘读取全部消息
+        InFileChatMemory reopened = new InFileChatMemory(dir.toString(), mode, 4, null,
+                new MessageCodec(true, 1024), InFileChatMemory.Durability.ASYNC);
+        try {
+            int total = 0;
+            for (int c = 0; c < CONVERSATIONS; c++) {
+                List<Message> messages = reopened.get(conversationId(c), Integer.MAX_VALUE);
+                total += messages.size();
+                assertInThreadOrder(messages);
+            }
+            assertEquals(THREADS * MESSAGES_PER_THREAD, total);
+        } finally {
+            reopened.close();
+        }
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertTrue(files.noneMatch(p -> p.getFileName().toString().contains(".corrupt")), "不应产生 .corrupt 文件");
+        }
+    }
+
+    /**
+     * 同一线程写入同一会话的消息序号应递增
+     */
+    private static void assertInThreadOrder(List<Message> messages) {
+        Map<String, Integer> lastIndex = new HashMap<>();
+        for (Message message : messages) {
+            String[] parts = message.getText().split("-");
+            int index = Integer.parseInt(parts[1]);
+            Integer previous = lastIndex.put(parts[0], index);
+            assertTrue(previous == null || previous < index, "线程 " + parts[0] + " 的消息顺序错乱");
+        }
+    }
+
+    private static String conversationId(int index) {
+        return "stress-" + index;
+    }
+}
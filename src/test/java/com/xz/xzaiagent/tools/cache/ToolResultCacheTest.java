@@ -0,0 +1,149 @@
+package com.xz.xzaiagent.tools.cache;
+
+import com.xz.xzaiagent.tools.WebScrapingTool;
+import com.xz.xzaiagent.tools.WebSearchTool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.model.function.FunctionCallback;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.ToolCallbacks;
+import org.springframework.ai.tool.annotation.Tool;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * ToolResultCache 测试：通过真实的 MethodToolCallback（结果经 JSON 编码）与 MCP 形式的结果，
+ * 验证工具自己的错误回复不进入缓存，正常结果（即使包含“失败”字样）照常缓存
+ */
+class ToolResultCacheTest {
+
+    private ToolResultCache cache;
+
+    @BeforeEach
+    void setUp() {
+        ToolCacheProperties properties = new ToolCacheProperties();
+        properties.getTtl().put("searchWeb", Duration.ofMinutes(10));
+        properties.getTtl().put("scrapeWebPage", Duration.ofMinutes(30));
+        properties.getTtl().put("searchImage", Duration.ofHours(1));
+        cache = new ToolResultCache(properties, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void searchWebFailureRepliesAreNotCached() {
+        StubSearchTool tool = new StubSearchTool(WebSearchTool.NO_RESULTS_REPLY);
+        ToolCallback callback = single(cache.wrap(ToolCallbacks.from(tool)));
+        callback.call("{\"query\":\"天气\"}");
+        callback.call("{\"query\":\"天气\"}");
+        assertEquals(2, tool.calls.get());
+
+        tool.reply = WebSearchTool.ERROR_REPLY;
+        callback.call("{\"query\":\"天气\"}");
+        callback.call("{\"query\":\"天气\"}");
+        assertEquals(4, tool.calls.get());
+    }
+
+    @Test
+    void normalResultsAreCachedEvenIfTheyMentionFailure() {
+        StubSearchTool tool = new StubSearchTool("恋爱中沟通失败的常见原因有……");
+        ToolCallback callback = single(cache.wrap(ToolCallbacks.from(tool)));
+        String first = callback.call("{\"query\":\"沟通\"}");
+        String second = callback.call("{\"query\":\" 沟通 \"}");
+        assertEquals(1, tool.calls.get());
+        assertEquals(first, second);
+    }
+
+    @Test
+    void scrapeWebPageErrorReplyIsNotCached() {
+        // 无效的 URL 让 Jsoup 立即失败，工具返回 ERROR_REPLY
+        ToolCallback callback = single(cache.wrap(ToolCallbacks.from(new WebScrapingTool())));
+        assertEquals("\"" + WebScrapingTool.ERROR_REPLY + "\"", callback.call("{\"url\":\"not a url\"}"));
+
+        StubScrapeTool tool = new StubScrapeTool();
+        ToolCallback stub = single(cache.wrap(ToolCallbacks.from(tool)));
+        stub.call("{\"url\":\"not a url\"}");
+        stub.call("{\"url\":\"not a url\"}");
+        assertEquals(2, tool.calls.get());
+    }
+
+    @Test
+    void mcpErrorReplyIsNotCached() {
+        AtomicInteger calls = new AtomicInteger();
+        FunctionCallback mcpTool = new McpStub(calls,
+                "[{\"type\":\"text\",\"text\":\"\\\"Error search image: Read timed out\\\"\"}]");
+        FunctionCallback callback = cache.wrap(new FunctionCallback[]{mcpTool})[0];
+        callback.call("{\"query\":\"cat\"}");
+        callback.call("{\"query\":\"cat\"}");
+        assertEquals(2, calls.get());
+
+        AtomicInteger okCalls = new AtomicInteger();
+        FunctionCallback ok = cache.wrap(new FunctionCallback[]{new McpStub(okCalls,
+                "[{\"type\":\"text\",\"text\":\"\\\"https://example.com/cat.jpg\\\"\"}]")})[0];
+        ok.call("{\"query\":\"dog\"}");
+        ok.call("{\"query\":\"dog\"}");
+        assertEquals(1, okCalls.get());
+    }
+
+    private static ToolCallback single(ToolCallback[] callbacks) {
+        assertEquals(1, callbacks.length);
+        return callbacks[0];
+    }
+
+    static class StubSearchTool {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        volatile String reply;
+
+        StubSearchTool(String reply) {
+            this.reply = reply;
+        }
+
+        @Tool(description = "搜索")
+        public String searchWeb(String query) {
+            calls.incrementAndGet();
+            return reply;
+        }
+    }
+
+    static class StubScrapeTool {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Tool(description = "抓取网页")
+        public String scrapeWebPage(String url) {
+            calls.incrementAndGet();
+            return new WebScrapingTool().scrapeWebPage(url);
+        }
+    }
+
+    /**
+     * 模拟 MCP 工具：结果为内容列表的 JSON 数组，工具名带客户端前缀
+     */
+    private record McpStub(AtomicInteger calls, String result) implements FunctionCallback {
+
+        @Override
+        public String getName() {
+            return "image_search_client_searchImage";
+        }
+
+        @Override
+        public String getDescription() {
+            return "搜索图片";
+        }
+
+        @Override
+        public String getInputTypeSchema() {
+            return "{}";
+        }
+
+        @Override
+        public String call(String functionInput) {
+            calls.incrementAndGet();
+            return result;
+        }
+    }
+}
@@ -36,11 +36,15 @@ export const loveAppService = {
 export const liteMindService = {
   /**
    * 创建SSE连接，获取AI超级智能体的思维链响应
+   * 断线时 EventSource 以同一 URL 自动重连并携带 Last-Event-ID，后端据 chatId 续传缺失的步骤
    * @param message 用户消息
+   * @param chatId 聊天ID（32 位十六进制）
    * @returns EventSource实例
    */
-  createChatConnection(message: string): EventSource {
-    const url = `${API_BASE_URL}/ai/liteMind/chat?message=${encodeURIComponent(message)}`
+  createChatConnection(message: string, chatId: string): EventSource {
+    const url = `${API_BASE_URL}/ai/chat/liteMind?message=${encodeURIComponent(
+      message,
+    )}&chatId=${chatId}`
     return new EventSource(url)
   },
 }